@@ -1,6 +1,7 @@
 package fr.skytasul.glowingentities;
 
 import fr.skytasul.glowingentities.GlowingEntities.Packets;
+import fr.skytasul.glowingentities.GlowingEntities.WorldLeavePolicy;
 import io.papermc.paper.event.packet.PlayerChunkLoadEvent;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
@@ -8,21 +9,48 @@ import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
+import org.bukkit.World;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An extension of {@link GlowingEntities} to make blocks glow as well!
  * <p>
- * <i>Can only be used on Paper-based servers.</i>
+ * <i>Can only be used on Paper-based servers.</i> Region-threaded servers (Folia) are supported: the
+ * state of each viewer is kept in concurrent maps and chunk loads are handled on the thread of the
+ * player's region.
  *
  * @author SkytAsul
  */
@@ -31,6 +59,16 @@ public class GlowingBlocks implements Listener {
 	private final @NotNull GlowingEntities entities;
 	private Map<Player, PlayerData> glowing;
 	private boolean enabled = false;
+	private volatile int glowBudget = -1;
+	private final Map<Location, SharedBlock> shared = new ConcurrentHashMap<>();
+	private final Map<ChunkKey, Set<SharedBlock>> sharedChunks = new ConcurrentHashMap<>();
+	private final Map<UUID, RetainedBlocks> retained = new ConcurrentHashMap<>();
+	private volatile long retentionMillis = 0;
+	private volatile @NotNull WorldLeavePolicy worldLeavePolicy = WorldLeavePolicy.SUSPEND;
+	private final @NotNull GlowingChanges<BlockGlowingChange> changes;
+
+	private static final int SNAPSHOT_MAGIC = 0x474C424B; // "GLBK"
+	private static final byte SNAPSHOT_VERSION = 1;
 
 	/**
 	 * Initializes the Glowing blocks API.
@@ -41,6 +79,8 @@ public class GlowingBlocks implements Listener {
 		testForPaper();
 
 		this.entities = new GlowingEntities(plugin);
+		this.changes = new GlowingChanges<>(plugin);
+		Packets.ENTITIES.ensureLoaded();
 
 		enable();
 	}
@@ -49,6 +89,7 @@ public class GlowingBlocks implements Listener {
 	 * Enables the Glowing blocks API.
 	 *
 	 * @see #disable()
+	 * @see GlowingEntities#enable()
 	 */
 	public void enable() {
 		if (enabled)
@@ -57,8 +98,15 @@ public class GlowingBlocks implements Listener {
 		entities.plugin.getServer().getPluginManager().registerEvents(this, entities.plugin);
 		if (!entities.enabled)
 			entities.enable();
-		glowing = new HashMap<>();
+		glowing = new ConcurrentHashMap<>();
 		enabled = true;
+		for (Player player : entities.plugin.getServer().getOnlinePlayers()) {
+			try {
+				restoreRetained(player);
+			} catch (ReflectiveOperationException ex) {
+				ex.printStackTrace();
+			}
+		}
 	}
 
 	/**
@@ -68,23 +116,51 @@ public class GlowingBlocks implements Listener {
 	 * {@link #unsetGlowing(Location, Player)} will no longer be usable.
 	 *
 	 * @see #enable()
+	 * @see #disableAsync()
+	 * @see GlowingEntities#disable()
 	 */
 	public void disable() {
+		disableAsync();
+	}
+
+	/**
+	 * Disables the API, like {@link #disable()}.
+	 *
+	 * @return a future completed once the underlying {@link GlowingEntities} has been disabled for all players
+	 * @see #enable()
+	 * @see GlowingEntities#disableAsync()
+	 */
+	public @NotNull CompletableFuture<Void> disableAsync() {
 		if (!enabled)
-			return;
+			return CompletableFuture.completedFuture(null);
 		HandlerList.unregisterAll(this);
+		changes.close();
+		// all the fake entities of a viewer are removed at once
+		Map<Player, List<SharedBlock>> sharedViewers = new HashMap<>();
+		shared.values().forEach(sharedBlock -> sharedBlock.viewers
+				.forEach(viewer -> sharedViewers.computeIfAbsent(viewer, key -> new ArrayList<>()).add(sharedBlock)));
+		sharedViewers.forEach((viewer, sharedBlocks) -> {
+			try {
+				hideShared(viewer, sharedBlocks);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		});
+		shared.values().forEach(sharedBlock -> FakeEntities.free(sharedBlock.entityId));
+		shared.clear();
+		sharedChunks.clear();
 		glowing.values().forEach(playerData -> {
-			playerData.datas.values().forEach(glowingData -> {
-				try {
-					glowingData.remove();
-				} catch (ReflectiveOperationException e) {
-					e.printStackTrace();
-				}
-			});
+			retain(playerData);
+			try {
+				removeAll(playerData.player, playerData.datas.values());
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
 		});
-		entities.disable();
+		CompletableFuture<Void> entitiesDisabling = entities.disableAsync();
 		glowing = null;
 		enabled = false;
+		return entitiesDisabling;
 	}
 
 	private void ensureEnabled() {
@@ -130,16 +206,35 @@ public class GlowingBlocks implements Listener {
 		if (!color.isColor())
 			throw new IllegalArgumentException("ChatColor must be a color format");
 
-		PlayerData playerData = glowing.computeIfAbsent(Objects.requireNonNull(receiver), PlayerData::new);
+		applyGlowing(block, Objects.requireNonNull(receiver), color, true);
+	}
+
+	private void applyGlowing(@NotNull Location block, @NotNull Player receiver, @NotNull ChatColor color,
+			boolean rank) throws ReflectiveOperationException {
+		PlayerData playerData = glowing.computeIfAbsent(receiver, PlayerData::new);
 
-		GlowingBlockData blockData = playerData.datas.get(block);
+		Map<Location, GlowingBlockData> partition = playerData.getPartition(block.getWorld().getUID(), true);
+		GlowingBlockData blockData = partition.get(block);
 		if (blockData == null) {
 			blockData = new GlowingBlockData(receiver, block, color);
-			playerData.datas.put(block, blockData);
-			if (canSee(receiver, block))
+			partition.put(block, blockData);
+			recordChange(receiver, block, color, true);
+			if (partition != playerData.datas)
+				return; // the player is in another world: the block will be displayed when they enter its world
+			SharedBlock sharedBlock = shared.get(block);
+			if (sharedBlock != null)
+				sharedBlock.hide(receiver); // the glowing of this player has precedence
+			if (glowBudget >= 0) {
+				// the block will only be displayed if it ranks within the budget
+				blockData.displayed = false;
+				if (rank)
+					updateBudget(playerData);
+			} else if (canSee(receiver, block)) {
 				blockData.spawn();
-		} else {
+			}
+		} else if (blockData.color != color) {
 			blockData.setColor(color);
+			recordChange(receiver, block, color, true);
 		}
 	}
 
@@ -164,20 +259,455 @@ public class GlowingBlocks implements Listener {
 	public void unsetGlowing(@NotNull Location block, @NotNull Player receiver) throws ReflectiveOperationException {
 		ensureEnabled();
 
-		block = normalizeLocation(block);
+		clearGlowing(List.of(normalizeLocation(block)), receiver, true);
+	}
+
+	/**
+	 * Makes the blocks at the locations passed as a parameter loose their glowing effect.
+	 * <p>
+	 * All the fake entities are removed with a single packet.
+	 *
+	 * @param blocks locations of the blocks to remove glowing effect from
+	 * @param receiver player which will no longer see the glowing effect
+	 * @throws ReflectiveOperationException
+	 */
+	public void unsetGlowing(@NotNull Collection<Location> blocks, @NotNull Player receiver)
+			throws ReflectiveOperationException {
+		ensureEnabled();
 
+		List<Location> normalized = new ArrayList<>(blocks.size());
+		for (Location block : blocks)
+			normalized.add(normalizeLocation(block));
+		clearGlowing(normalized, receiver, true);
+	}
+
+	private void clearGlowing(@NotNull Collection<Location> blocks, @NotNull Player receiver, boolean rank)
+			throws ReflectiveOperationException {
 		PlayerData playerData = glowing.get(receiver);
 		if (playerData == null)
 			return;
 
-		GlowingBlockData blockData = playerData.datas.remove(block);
-		if (blockData == null)
-			return; // the player did not have this block glowing
+		List<GlowingBlockData> removed = new ArrayList<>();
+		boolean wasDisplayed = false;
+		for (Location block : blocks) {
+			UUID world = block.getWorld().getUID();
+			Map<Location, GlowingBlockData> partition = playerData.getPartition(world, false);
+			GlowingBlockData blockData = partition == null ? null : partition.remove(block);
+			if (blockData == null)
+				continue; // the player did not have this block glowing
+
+			if (partition != playerData.datas) {
+				// the block is in a world the player has left: it is not displayed
+				if (partition.isEmpty())
+					playerData.suspended.remove(world, partition);
+				recordChange(receiver, block, null, false);
+				continue;
+			}
+			removed.add(blockData);
+			recordChange(receiver, block, null, false);
+			wasDisplayed |= blockData.displayed;
+		}
+
+		boolean rankAgain = rank && wasDisplayed && glowBudget >= 0;
+		Packets.batch(() -> {
+			removeAll(receiver, removed);
 
-		blockData.remove();
+			if (playerData.isEmpty())
+				glowing.remove(receiver);
+			else if (rankAgain)
+				updateBudget(playerData); // other blocks may now rank in
 
-		if (playerData.datas.isEmpty())
-			glowing.remove(receiver);
+			for (GlowingBlockData blockData : removed) {
+				SharedBlock sharedBlock = shared.get(blockData.location);
+				if (sharedBlock != null && canSee(receiver, blockData.location))
+					sharedBlock.show(receiver);
+			}
+		});
+	}
+
+	/**
+	 * Removes the fake entities of many blocks of a player with a single packet, and their team entries
+	 * with one packet per color.
+	 */
+	private void removeAll(@NotNull Player player, @NotNull Collection<GlowingBlockData> blocks)
+			throws ReflectiveOperationException {
+		int[] entityIDs = new int[blocks.size()];
+		int count = 0;
+		for (GlowingBlockData blockData : blocks) {
+			if (blockData.entityUuid != null && count < entityIDs.length) {
+				entityIDs[count++] = blockData.entityId;
+				blockData.entityUuid = null; // a new entity will be created if the block is spawned again
+			}
+		}
+		if (count == 0)
+			return;
+
+		int[] removedIDs = count == entityIDs.length ? entityIDs : Arrays.copyOf(entityIDs, count);
+		Packets.batch(() -> {
+			Packets.removeEntities(player, removedIDs);
+			entities.unsetGlowingDestroyed(player, removedIDs);
+		});
+		for (int entityID : removedIDs)
+			FakeEntities.free(entityID);
+	}
+
+	/**
+	 * Removes many shared blocks for a viewer with a single packet, and their team entries with one packet
+	 * per color.
+	 */
+	private void hideShared(@NotNull Player viewer, @NotNull Collection<SharedBlock> sharedBlocks)
+			throws ReflectiveOperationException {
+		int[] entityIDs = new int[sharedBlocks.size()];
+		int count = 0;
+		Map<ChatColor, List<String>> teamEntries = new EnumMap<>(ChatColor.class);
+		for (SharedBlock sharedBlock : sharedBlocks) {
+			if (sharedBlock.viewers.remove(viewer) && count < entityIDs.length) {
+				entityIDs[count++] = sharedBlock.entityId;
+				teamEntries.computeIfAbsent(sharedBlock.color, key -> new ArrayList<>())
+						.add(sharedBlock.entityUuid.toString());
+			}
+		}
+		if (count == 0)
+			return;
+
+		int[] removedIDs = count == entityIDs.length ? entityIDs : Arrays.copyOf(entityIDs, count);
+		Packets.batch(() -> {
+			Packets.removeEntities(viewer, removedIDs);
+			Packets.removeTeamEntries(viewer, teamEntries);
+		});
+	}
+
+	/**
+	 * Makes exactly the blocks passed as a parameter glow for the player, with their associated color.
+	 * <p>
+	 * The set is compared with the current glowing blocks of the player: blocks which are not in the set
+	 * anymore stop glowing, new ones start glowing and only the blocks whose color changed are updated. All
+	 * resulting packets are sent at once.
+	 *
+	 * @param receiver player which will see the blocks glowing
+	 * @param blocks locations of all the blocks that must glow for the player, with their colors
+	 * @throws ReflectiveOperationException
+	 */
+	public void setGlowingSet(@NotNull Player receiver, @NotNull Map<Location, ChatColor> blocks)
+			throws ReflectiveOperationException {
+		ensureEnabled();
+		Objects.requireNonNull(receiver);
+
+		Map<Location, ChatColor> normalized = new HashMap<>(blocks.size() * 2);
+		blocks.forEach((location, color) -> {
+			if (!color.isColor())
+				throw new IllegalArgumentException("ChatColor must be a color format");
+			normalized.put(normalizeLocation(location), color);
+		});
+
+		Packets.batch(() -> {
+			// the budget is computed once at the end instead of after each change
+			PlayerData playerData = glowing.get(receiver);
+			if (playerData != null) {
+				List<Location> removed = new ArrayList<>();
+				for (Location location : playerData.datas.keySet()) {
+					if (!normalized.containsKey(location))
+						removed.add(location);
+				}
+				for (Map<Location, GlowingBlockData> partition : playerData.suspended.values()) {
+					for (Location location : partition.keySet()) {
+						if (!normalized.containsKey(location))
+							removed.add(location);
+					}
+				}
+				clearGlowing(removed, receiver, false);
+			}
+
+			for (var entry : normalized.entrySet())
+				applyGlowing(entry.getKey(), receiver, entry.getValue(), false);
+
+			PlayerData newPlayerData = glowing.get(receiver);
+			if (newPlayerData != null && glowBudget >= 0)
+				updateBudget(newPlayerData);
+		});
+	}
+
+	/**
+	 * Makes the block at the location passed as a parameter glow with the specified color for all players
+	 * seeing it.
+	 * <p>
+	 * A single fake entity is created for the block, and its packets are built once and sent to every
+	 * player to whom the chunk of the block is sent. Blocks made glowing for a specific player with
+	 * {@link #setGlowing(Location, Player, ChatColor)} take precedence for this player. Shared blocks do
+	 * not count in the {@linkplain #setGlowBudget(int) budget} of players.
+	 *
+	 * @param block location of the block to make glow
+	 * @param color color of the glowing effect
+	 * @throws ReflectiveOperationException
+	 */
+	public void setSharedGlowing(@NotNull Location block, @NotNull ChatColor color)
+			throws ReflectiveOperationException {
+		ensureEnabled();
+
+		block = normalizeLocation(block);
+
+		if (!color.isColor())
+			throw new IllegalArgumentException("ChatColor must be a color format");
+
+		SharedBlock sharedBlock = shared.get(block);
+		if (sharedBlock != null) {
+			if (sharedBlock.color != color) {
+				sharedBlock.setColor(color);
+				recordChange(null, block, color, true);
+			}
+			return;
+		}
+
+		sharedBlock = new SharedBlock(block, color);
+		if (shared.putIfAbsent(block, sharedBlock) != null) {
+			setSharedGlowing(block, color); // another thread was faster
+			return;
+		}
+		recordChange(null, block, color, true);
+		sharedChunks.computeIfAbsent(ChunkKey.of(block), key -> ConcurrentHashMap.newKeySet()).add(sharedBlock);
+
+		for (Player player : block.getWorld().getPlayers()) {
+			if (canSee(player, block) && !hasOverride(player, block))
+				sharedBlock.show(player);
+		}
+	}
+
+	/**
+	 * Makes the block at the location passed as a parameter loose its shared glowing effect.
+	 *
+	 * @param block location of the block to remove shared glowing effect from
+	 * @throws ReflectiveOperationException
+	 * @see #setSharedGlowing(Location, ChatColor)
+	 */
+	public void unsetSharedGlowing(@NotNull Location block) throws ReflectiveOperationException {
+		ensureEnabled();
+
+		block = normalizeLocation(block);
+
+		SharedBlock sharedBlock = shared.remove(block);
+		if (sharedBlock == null)
+			return;
+		recordChange(null, block, null, false);
+
+		Set<SharedBlock> chunkBlocks = sharedChunks.get(ChunkKey.of(block));
+		if (chunkBlocks != null)
+			chunkBlocks.remove(sharedBlock);
+		sharedBlock.hideAll();
+		FakeEntities.free(sharedBlock.entityId);
+	}
+
+	/**
+	 * Chooses what happens to the glowing blocks of a player located in a world they leave.
+	 *
+	 * @param policy policy applied when a player changes world, {@link WorldLeavePolicy#SUSPEND} by default
+	 */
+	public void setWorldLeavePolicy(@NotNull WorldLeavePolicy policy) {
+		this.worldLeavePolicy = Objects.requireNonNull(policy);
+	}
+
+	/**
+	 * Gets a stream of the changes made to the glowing blocks, for single players and shared ones.
+	 * <p>
+	 * The changes of a tick are published at once, at the beginning of the next tick, and delivered to the
+	 * subscribers asynchronously. Each subscriber can buffer a limited amount of batches: if it does not
+	 * request them fast enough, the next batches are dropped for it.
+	 * <p>
+	 * Subscriptions are completed when the API is disabled.
+	 *
+	 * @return a publisher of lists of changes
+	 * @see GlowingEntities#changes()
+	 */
+	public @NotNull Flow.Publisher<List<BlockGlowingChange>> changes() {
+		return changes.publisher();
+	}
+
+	private void recordChange(@Nullable Player viewer, @NotNull Location block, @Nullable ChatColor color,
+			boolean glowing) {
+		if (changes.isObserved())
+			changes.record(
+					new BlockGlowingChange(viewer == null ? null : viewer.getUniqueId(), block, color, glowing));
+	}
+
+	private boolean hasOverride(@NotNull Player player, @NotNull Location block) {
+		PlayerData playerData = glowing.get(player);
+		return playerData != null && playerData.datas.containsKey(block);
+	}
+
+	/**
+	 * Limits the amount of blocks a single player can see glowing at the same time.
+	 * <p>
+	 * When a player has more glowing blocks than the budget, only the nearest ones are displayed. The other
+	 * blocks are still remembered, and are displayed again as soon as they rank back in when the player
+	 * moves.
+	 *
+	 * @param budget maximum amount of glowing blocks per player, or a negative number for no limit
+	 * @throws ReflectiveOperationException
+	 */
+	public void setGlowBudget(int budget) throws ReflectiveOperationException {
+		ensureEnabled();
+		this.glowBudget = budget;
+		for (PlayerData playerData : glowing.values()) {
+			updateBudget(playerData);
+		}
+	}
+
+	private void updateBudget(@NotNull PlayerData playerData) throws ReflectiveOperationException {
+		int budget = glowBudget;
+		Location viewerLocation = playerData.player.getLocation();
+		playerData.lastRankLocation = viewerLocation;
+		Set<GlowingBlockData> displayed = budget < 0 ? null
+				: GlowingEntities.selectFirst(playerData.datas.values(), data -> data.getPriority(viewerLocation), budget);
+		Packets.batch(() -> {
+			List<GlowingBlockData> hidden = new ArrayList<>();
+			for (GlowingBlockData blockData : playerData.datas.values()) {
+				boolean display = displayed == null || displayed.contains(blockData);
+				if (blockData.displayed != display) {
+					blockData.displayed = display;
+					if (!display)
+						hidden.add(blockData);
+					else if (canSee(playerData.player, blockData.location))
+						blockData.spawn();
+				}
+			}
+			removeAll(playerData.player, hidden);
+		});
+	}
+
+	/**
+	 * Keeps the glowing blocks of players for some time after they leave the server or after the API is
+	 * disabled. If they come back before the end of this duration, their blocks glow again without any call
+	 * to {@link #setGlowing(Location, Player, ChatColor)}.
+	 *
+	 * @param retention how long to keep the state, or <code>null</code> to forget it immediately (default)
+	 * @see GlowingEntities#setStateRetention(Duration)
+	 */
+	public void setStateRetention(@Nullable Duration retention) {
+		this.retentionMillis = retention == null ? 0 : retention.toMillis();
+		if (retentionMillis <= 0)
+			retained.clear();
+	}
+
+	/**
+	 * Writes the glowing blocks of all players, online ones and retained ones, in a compact binary format.
+	 *
+	 * @param file file to write, for instance in the data folder of the plugin
+	 * @throws IOException if the file cannot be written
+	 * @see #loadSnapshot(File)
+	 */
+	public void saveSnapshot(@NotNull File file) throws IOException {
+		ensureEnabled();
+		long now = System.currentTimeMillis();
+		Map<UUID, Map<Location, ChatColor>> states = new HashMap<>();
+		retained.forEach((uuid, state) -> {
+			if (state.expiration >= now)
+				states.put(uuid, state.blocks);
+		});
+		for (PlayerData playerData : glowing.values()) {
+			if (!playerData.isEmpty())
+				states.put(playerData.player.getUniqueId(), RetainedBlocks.of(playerData));
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeByte(SNAPSHOT_VERSION);
+			out.writeInt(states.size());
+			for (var entry : states.entrySet()) {
+				out.writeLong(entry.getKey().getMostSignificantBits());
+				out.writeLong(entry.getKey().getLeastSignificantBits());
+				out.writeInt(entry.getValue().size());
+				for (var block : entry.getValue().entrySet()) {
+					UUID world = block.getKey().getWorld().getUID();
+					out.writeLong(world.getMostSignificantBits());
+					out.writeLong(world.getLeastSignificantBits());
+					out.writeInt(block.getKey().getBlockX());
+					out.writeInt(block.getKey().getBlockY());
+					out.writeInt(block.getKey().getBlockZ());
+					out.writeChar(block.getValue().getChar());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by {@link #saveSnapshot(File)}. The blocks of online players glow again
+	 * immediately, the ones of other players if they join before the end of the retention set with
+	 * {@link #setStateRetention(Duration)}, or within 10 minutes if no retention has been set. Blocks of
+	 * worlds which are not loaded are ignored.
+	 *
+	 * @param file file to read
+	 * @throws IOException if the file cannot be read or is not a snapshot
+	 * @throws ReflectiveOperationException
+	 */
+	public void loadSnapshot(@NotNull File file) throws IOException, ReflectiveOperationException {
+		ensureEnabled();
+		long retention = retentionMillis;
+		long expiration =
+				System.currentTimeMillis() + (retention > 0 ? retention : GlowingEntities.SNAPSHOT_RETENTION);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != SNAPSHOT_VERSION)
+				throw new IOException("Not a glowing blocks snapshot: " + file);
+			int players = in.readInt();
+			for (int i = 0; i < players; i++) {
+				UUID uuid = new UUID(in.readLong(), in.readLong());
+				int size = in.readInt();
+				Map<Location, ChatColor> blocks = new HashMap<>(size);
+				for (int j = 0; j < size; j++) {
+					World world = Bukkit.getWorld(new UUID(in.readLong(), in.readLong()));
+					int x = in.readInt();
+					int y = in.readInt();
+					int z = in.readInt();
+					ChatColor color = ChatColor.getByChar(in.readChar());
+					if (world != null && color != null)
+						blocks.put(new Location(world, x, y, z), color);
+				}
+				retained.put(uuid, new RetainedBlocks(blocks, expiration));
+			}
+		}
+
+		for (Player player : entities.plugin.getServer().getOnlinePlayers())
+			restoreRetained(player);
+	}
+
+	private void retain(@NotNull PlayerData playerData) {
+		long retention = retentionMillis;
+		if (retention <= 0 || playerData.isEmpty())
+			return;
+		long now = System.currentTimeMillis();
+		purgeRetained(now);
+		retained.put(playerData.player.getUniqueId(),
+				new RetainedBlocks(RetainedBlocks.of(playerData), now + retention));
+	}
+
+	private void purgeRetained(long now) {
+		retained.values().removeIf(state -> state.expiration < now);
+	}
+
+	private void restoreRetained(@NotNull Player player) throws ReflectiveOperationException {
+		if (retained.isEmpty())
+			return;
+		purgeRetained(System.currentTimeMillis()); // the blocks of the players who do not come back are dropped
+		RetainedBlocks state = retained.remove(player.getUniqueId());
+		if (state == null)
+			return;
+
+		PlayerData playerData = glowing.computeIfAbsent(player, PlayerData::new);
+		for (var entry : state.blocks.entrySet()) {
+			Map<Location, GlowingBlockData> partition =
+					playerData.getPartition(entry.getKey().getWorld().getUID(), true);
+			if (partition.containsKey(entry.getKey()))
+				continue; // the block has been made glowing again in the meantime
+			GlowingBlockData blockData = new GlowingBlockData(player, entry.getKey(), entry.getValue());
+			partition.put(entry.getKey(), blockData);
+			recordChange(player, entry.getKey(), entry.getValue(), true);
+			if (partition != playerData.datas)
+				continue; // the block will be displayed when the player enters its world
+			if (glowBudget >= 0)
+				blockData.displayed = false; // the budget will choose the displayed blocks
+			else if (canSee(player, entry.getKey()))
+				blockData.spawn(); // otherwise it will be spawned when the chunk is sent
+		}
+		if (glowBudget >= 0)
+			updateBudget(playerData);
 	}
 
 	private @NotNull Location normalizeLocation(@NotNull Location location) {
@@ -198,26 +728,185 @@ public class GlowingBlocks implements Listener {
 	@EventHandler
 	public void onPlayerChunkLoad(PlayerChunkLoadEvent event) {
 		PlayerData playerData = glowing.get(event.getPlayer());
-		if (playerData == null)
+		Set<SharedBlock> sharedBlocks = sharedChunks.isEmpty() ? null
+				: sharedChunks.get(new ChunkKey(event.getWorld().getUID(), event.getChunk().getX(),
+						event.getChunk().getZ()));
+		if (playerData == null && sharedBlocks == null)
 			return;
 
-		playerData.datas.forEach((location, blockData) -> {
-			if (Objects.equals(location.getWorld(), event.getWorld())
-					&& location.getBlockX() >> 4 == event.getChunk().getX()
-					&& location.getBlockZ() >> 4 == event.getChunk().getZ()) {
+		GlowingEvents.BlockChunkSpawn spawnEvent = new GlowingEvents.BlockChunkSpawn();
+		spawnEvent.begin();
+		int chunkX = event.getChunk().getX();
+		int chunkZ = event.getChunk().getZ();
+		try {
+			// all the blocks of the chunk are sent at once
+			Packets.batch(() -> spawnEvent.commit(event.getPlayer(), chunkX, chunkZ,
+					spawnChunk(event.getPlayer(), playerData, sharedBlocks, event.getWorld(), chunkX, chunkZ)));
+		} catch (ReflectiveOperationException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private int spawnChunk(@NotNull Player player, PlayerData playerData, Set<SharedBlock> sharedBlocks,
+			@NotNull World world, int chunkX, int chunkZ) {
+		int spawned = 0;
+		if (sharedBlocks != null) {
+			for (SharedBlock sharedBlock : sharedBlocks) {
+				if (playerData != null && playerData.datas.containsKey(sharedBlock.location))
+					continue; // the block glows specifically for this player
+				try {
+					sharedBlock.show(player);
+					spawned++;
+				} catch (ReflectiveOperationException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+		if (playerData == null || !world.getUID().equals(playerData.world))
+			return spawned;
+		// only the blocks of the world of the player are in this partition
+		for (var entry : playerData.datas.entrySet()) {
+			Location location = entry.getKey();
+			GlowingBlockData blockData = entry.getValue();
+			if (blockData.displayed && location.getBlockX() >> 4 == chunkX && location.getBlockZ() >> 4 == chunkZ) {
 				try {
 					blockData.spawn();
+					spawned++;
 				} catch (ReflectiveOperationException ex) {
 					ex.printStackTrace();
 				}
 			}
-		});
+		}
+		return spawned;
+	}
+
+	@EventHandler
+	public void onWorldChange(PlayerChangedWorldEvent event) {
+		PlayerData playerData = glowing.get(event.getPlayer());
+		if (playerData == null)
+			return;
+
+		UUID previousWorld = playerData.world;
+		Map<Location, GlowingBlockData> left = playerData.datas;
+		UUID world = event.getPlayer().getWorld().getUID();
+		Map<Location, GlowingBlockData> entered = playerData.suspended.remove(world);
+		playerData.world = world;
+		playerData.datas = entered == null ? new ConcurrentHashMap<>() : entered;
+
+		try {
+			// the client forgets the fake entities of the world it leaves: they will be created again
+			removeAll(event.getPlayer(), left.values());
+			if (!left.isEmpty() && worldLeavePolicy == WorldLeavePolicy.SUSPEND)
+				playerData.suspended.put(previousWorld, left);
+			else if (changes.isObserved())
+				left.keySet().forEach(block -> recordChange(event.getPlayer(), block, null, false));
+			if (playerData.isEmpty())
+				glowing.remove(event.getPlayer());
+			else if (glowBudget >= 0)
+				updateBudget(playerData);
+			// otherwise, the blocks of the entered world are spawned when their chunks are sent
+		} catch (ReflectiveOperationException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	@EventHandler
+	public void onJoin(PlayerJoinEvent event) {
+		try {
+			restoreRetained(event.getPlayer());
+		} catch (ReflectiveOperationException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	@EventHandler
+	public void onQuit(PlayerQuitEvent event) {
+		// the fake entities are forgotten by the client, and by the GlowingEntities instance
+		PlayerData playerData = glowing.remove(event.getPlayer());
+		if (playerData != null) {
+			retain(playerData);
+			if (changes.isObserved()) {
+				playerData.datas.keySet().forEach(block -> recordChange(event.getPlayer(), block, null, false));
+				playerData.suspended.values().forEach(partition -> partition.keySet()
+						.forEach(block -> recordChange(event.getPlayer(), block, null, false)));
+			}
+		}
+		shared.values().forEach(sharedBlock -> sharedBlock.viewers.remove(event.getPlayer()));
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onMove(PlayerMoveEvent event) {
+		if (glowBudget < 0)
+			return;
+		PlayerData playerData = glowing.get(event.getPlayer());
+		if (playerData == null || !GlowingEntities.needsRanking(playerData.lastRankLocation, event.getTo()))
+			return;
+		try {
+			updateBudget(playerData);
+		} catch (ReflectiveOperationException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * A change of the glowing state of a block.
+	 *
+	 * @param viewer UUID of the player seeing the block, or <code>null</code> for a
+	 *        {@linkplain GlowingBlocks#setSharedGlowing(Location, ChatColor) shared} block
+	 * @param block location of the block
+	 * @param color new color of the block, <code>null</code> if it does not glow anymore
+	 * @param glowing <code>true</code> if the block starts glowing or changes color, <code>false</code> if it
+	 *        stops glowing
+	 * @see GlowingBlocks#changes()
+	 */
+	public record BlockGlowingChange(@Nullable UUID viewer, @NotNull Location block, @Nullable ChatColor color,
+			boolean glowing) {}
+
+	private record RetainedBlocks(@NotNull Map<Location, ChatColor> blocks, long expiration) {
+
+		static @NotNull Map<Location, ChatColor> of(@NotNull PlayerData playerData) {
+			Map<Location, ChatColor> blocks = new HashMap<>(playerData.datas.size());
+			playerData.datas.forEach((location, blockData) -> blocks.put(location, blockData.color));
+			playerData.suspended.values().forEach(partition -> partition
+					.forEach((location, blockData) -> blocks.put(location, blockData.color)));
+			return blocks;
+		}
+
+	}
+
+	private record ChunkKey(@NotNull UUID world, int x, int z) {
+
+		static @NotNull ChunkKey of(@NotNull Location location) {
+			return new ChunkKey(location.getWorld().getUID(), location.getBlockX() >> 4, location.getBlockZ() >> 4);
+		}
+
 	}
 
-	private record PlayerData(@NotNull Player player, @NotNull Map<Location, GlowingBlockData> datas) {
+	private static class PlayerData {
+		// not a record anymore as the last ranking location changes
+
+		final @NotNull Player player;
+		volatile @NotNull UUID world;
+		volatile @NotNull Map<Location, GlowingBlockData> datas; // blocks of the world the player is in
+		final @NotNull Map<UUID, Map<Location, GlowingBlockData>> suspended; // blocks of worlds the player left
+		Location lastRankLocation;
 
-		public PlayerData(@NotNull Player player) {
-			this(player, new HashMap<>());
+		PlayerData(@NotNull Player player) {
+			this.player = player;
+			this.world = player.getWorld().getUID();
+			this.datas = new ConcurrentHashMap<>();
+			this.suspended = new ConcurrentHashMap<>();
+		}
+
+		@Nullable
+		Map<Location, GlowingBlockData> getPartition(@NotNull UUID world, boolean create) {
+			if (world.equals(this.world))
+				return datas;
+			return create ? suspended.computeIfAbsent(world, key -> new ConcurrentHashMap<>()) : suspended.get(world);
+		}
+
+		boolean isEmpty() {
+			return datas.isEmpty() && suspended.isEmpty();
 		}
 
 	}
@@ -225,15 +914,14 @@ public class GlowingBlocks implements Listener {
 	private class GlowingBlockData {
 
 		private static final byte FLAGS = 1 << 5; // invisibility flag
-		private static final AtomicInteger ENTITY_ID_COUNTER =
-				new AtomicInteger(ThreadLocalRandom.current().nextInt(1_000_000, 2_000_000_000));
 
 		private final @NotNull Player player;
 		private final @NotNull Location location;
 
-		private @NotNull ChatColor color;
-		private int entityId;
-		private UUID entityUuid;
+		private volatile @NotNull ChatColor color;
+		private volatile int entityId;
+		private volatile UUID entityUuid;
+		private volatile boolean displayed = true;
 
 		public GlowingBlockData(@NotNull Player player, @NotNull Location location, @NotNull ChatColor color) {
 			this.player = player;
@@ -249,25 +937,25 @@ public class GlowingBlocks implements Listener {
 		}
 
 		public void spawn() throws ReflectiveOperationException {
-			init();
+			Packets.batch(() -> {
+				init();
 
-			Packets.createEntity(player, entityId, entityUuid, Packets.shulkerEntityType, location);
-			Packets.setMetadata(player, entityId, FLAGS, false);
-			// this will take care of refreshing the color thanks to the packet handler in GlowingEntities
+				Packets.createEntity(player, entityId, entityUuid, Packets.shulkerEntityType, location);
+				Packets.setMetadata(player, entityId, FLAGS, false);
+				// this will take care of refreshing the color thanks to the packet handler in GlowingEntities
+			});
 		}
 
-		public void remove() throws ReflectiveOperationException {
-			if (entityUuid == null)
-				return;
-
-			Packets.removeEntities(player, entityId);
-			entities.unsetGlowing(entityId, player);
+		private double getPriority(@NotNull Location viewerLocation) {
+			if (!Objects.equals(location.getWorld(), viewerLocation.getWorld()))
+				return Double.POSITIVE_INFINITY;
+			return location.distanceSquared(viewerLocation);
 		}
 
-		private void init() throws ReflectiveOperationException {
+		private synchronized void init() throws ReflectiveOperationException {
 			if (entityUuid == null) {
-				entityId = ENTITY_ID_COUNTER.getAndIncrement();
-				entityUuid = UUID.randomUUID();
+				entityId = FakeEntities.allocateId();
+				entityUuid = FakeEntities.randomUuid();
 
 				setColor(color);
 			}
@@ -275,4 +963,121 @@ public class GlowingBlocks implements Listener {
 
 	}
 
+	private class SharedBlock {
+
+		private final @NotNull Location location;
+		private final int entityId;
+		private final @NotNull UUID entityUuid;
+		private final @NotNull Object spawnPacket;
+		private final @NotNull Object metadataPacket;
+		private final @NotNull Object[] removePackets;
+		private final Set<Player> viewers = ConcurrentHashMap.newKeySet(); // players who received the team entry
+
+		private volatile @NotNull ChatColor color;
+
+		public SharedBlock(@NotNull Location location, @NotNull ChatColor color) throws ReflectiveOperationException {
+			this.location = location;
+			this.color = color;
+			this.entityId = FakeEntities.allocateId();
+			this.entityUuid = FakeEntities.randomUuid();
+
+			// the packets are the same for all viewers
+			spawnPacket = Packets.createEntityPacket(entityId, entityUuid, Packets.shulkerEntityType, location);
+			metadataPacket =
+					Packets.createMetadata(entityId, Packets.computeFlags(GlowingBlockData.FLAGS, true), false);
+			removePackets = Packets.createRemoveEntitiesPackets(entityId);
+		}
+
+		public void setColor(@NotNull ChatColor color) throws ReflectiveOperationException {
+			this.color = color;
+			for (Player viewer : viewers)
+				entities.sendTeamEntry(viewer, entityUuid.toString(), color); // moves the entry to the new team
+		}
+
+		public void show(@NotNull Player viewer) throws ReflectiveOperationException {
+			if (viewers.add(viewer))
+				entities.sendTeamEntry(viewer, entityUuid.toString(), color);
+			Packets.sendPackets(viewer, spawnPacket, metadataPacket);
+		}
+
+		public void hide(@NotNull Player viewer) throws ReflectiveOperationException {
+			if (viewers.remove(viewer)) {
+				Packets.sendPackets(viewer, removePackets);
+				Packets.removeTeamEntry(viewer, entityUuid.toString(), color);
+			}
+		}
+
+		public void hideAll() throws ReflectiveOperationException {
+			for (Player viewer : viewers)
+				hide(viewer);
+		}
+
+	}
+
+	/**
+	 * Allocates the IDs and UUIDs of the fake entities.
+	 * <p>
+	 * IDs are taken from a range far above the IDs given by the server to its entities. Each thread reserves
+	 * a block of this range at once so that allocations do not contend, and reuses the IDs of the fake
+	 * entities it removed.
+	 */
+	private static final class FakeEntities {
+
+		private static final int RANGE_START = 1_000_000_000;
+		private static final int BLOCK_SIZE = 1024;
+		private static final int BLOCKS = (1 << 30) / BLOCK_SIZE;
+		private static final int MAX_RECYCLED = 4096;
+
+		// the first block is random so that several plugins shading the util do not use the same IDs
+		private static final AtomicInteger nextBlock = new AtomicInteger(ThreadLocalRandom.current().nextInt(BLOCKS));
+		private static final ThreadLocal<FakeEntities> local = ThreadLocal.withInitial(FakeEntities::new);
+
+		private int next;
+		private int end;
+		private int[] recycled = new int[64];
+		private int recycledCount;
+
+		private FakeEntities() {}
+
+		static int allocateId() {
+			return local.get().nextId();
+		}
+
+		/**
+		 * Makes an ID available again. It must only be called once the fake entity has been removed for
+		 * its viewers.
+		 */
+		static void free(int entityId) {
+			local.get().recycle(entityId);
+		}
+
+		static @NotNull UUID randomUuid() {
+			// the UUIDs only have to be unique among the entities of the client, no need for a secure random
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long mostSigBits = random.nextLong() & ~0xF000L | 0x4000L; // version 4
+			long leastSigBits = random.nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L; // IETF variant
+			return new UUID(mostSigBits, leastSigBits);
+		}
+
+		private int nextId() {
+			if (recycledCount > 0)
+				return recycled[--recycledCount];
+			if (next == end) {
+				next = RANGE_START + Math.floorMod(nextBlock.getAndIncrement(), BLOCKS) * BLOCK_SIZE;
+				end = next + BLOCK_SIZE;
+			}
+			return next++;
+		}
+
+		private void recycle(int entityId) {
+			if (recycledCount == recycled.length) {
+				if (recycled.length == MAX_RECYCLED)
+					return; // the ID is lost, the range is large enough
+				recycled = Arrays.copyOf(recycled, recycled.length * 2);
+			}
+			recycled[recycledCount++] = entityId;
+		}
+
+	}
+
 }
@@ -0,0 +1,91 @@
+package fr.skytasul.glowingentities;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * Stream of the changes of the glowing state, published to the subscribers of a {@link GlowingEntities}
+ * or {@link GlowingBlocks} instance.
+ * <p>
+ * Changes are only queued if there is at least one subscriber, without blocking the thread which changes
+ * the state. They are published once per tick as a single list. Each subscriber has its own bounded
+ * buffer: a subscriber which does not keep up loses the batches it cannot take instead of slowing down
+ * the server.
+ *
+ * @param <T> type of the changes
+ */
+final class GlowingChanges<T> {
+
+	private static final int BUFFER_CAPACITY = 256; // batches, so ticks
+
+	private final @NotNull Plugin plugin;
+	private final Queue<T> pending = new ConcurrentLinkedQueue<>();
+
+	private volatile SubmissionPublisher<List<T>> publisher;
+	private Runnable cancelTask;
+
+	GlowingChanges(@NotNull Plugin plugin) {
+		this.plugin = plugin;
+	}
+
+	synchronized @NotNull Flow.Publisher<List<T>> publisher() {
+		if (publisher == null) {
+			publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), BUFFER_CAPACITY);
+			if (GlowingEntities.Packets.isFolia) {
+				ScheduledTask task = Bukkit.getGlobalRegionScheduler().runAtFixedRate(plugin,
+						scheduledTask -> publish(), 1L, 1L);
+				cancelTask = task::cancel;
+			} else {
+				BukkitTask task = Bukkit.getScheduler().runTaskTimer(plugin, this::publish, 1L, 1L);
+				cancelTask = task::cancel;
+			}
+		}
+		return publisher;
+	}
+
+	boolean isObserved() {
+		SubmissionPublisher<List<T>> current = publisher;
+		return current != null && current.hasSubscribers();
+	}
+
+	void record(@NotNull T change) {
+		if (isObserved())
+			pending.add(change);
+	}
+
+	private void publish() {
+		SubmissionPublisher<List<T>> current = publisher;
+		if (current == null || pending.isEmpty())
+			return;
+		List<T> batch = new ArrayList<>();
+		for (T change; (change = pending.poll()) != null;)
+			batch.add(change);
+		// never waits: the batch is dropped for the subscribers whose buffer is full
+		current.offer(Collections.unmodifiableList(batch), (subscriber, dropped) -> false);
+	}
+
+	/**
+	 * Publishes the last changes and completes the subscriptions.
+	 */
+	synchronized void close() {
+		if (publisher == null)
+			return;
+		cancelTask.run();
+		publish();
+		publisher.close();
+		publisher = null;
+		pending.clear();
+	}
+
+}
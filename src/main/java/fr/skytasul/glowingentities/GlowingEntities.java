@@ -1,5 +1,6 @@
 package fr.skytasul.glowingentities;
 
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import fr.skytasul.reflection.MappedReflectionAccessor;
@@ -10,32 +11,61 @@ import fr.skytasul.reflection.TransparentReflectionAccessor;
 import fr.skytasul.reflection.Version;
 import fr.skytasul.reflection.mappings.files.MappingFileReader;
 import fr.skytasul.reflection.mappings.files.ProguardMapping;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.papermc.paper.ServerBuildInfo;
+import io.papermc.paper.event.player.PlayerTrackEntityEvent;
+import io.papermc.paper.event.player.PlayerUntrackEntityEvent;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiPredicate;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 /**
  * An util to easily make entities glow.
+ * <p>
+ * The glowing state is stored per viewer in concurrent maps, so that on region-threaded servers (Folia)
+ * viewers owned by different regions can be updated in parallel.
  *
  * @author SkytAsul
  */
@@ -47,6 +77,23 @@ public class GlowingEntities implements Listener {
 
 	private int uid;
 
+	private final List<GlowingRule> rules = new CopyOnWriteArrayList<>();
+	private final Map<Integer, RuleMatch> ruleMatches = new ConcurrentHashMap<>();
+	private Listener trackingListener;
+	volatile boolean trackingEngine = false;
+	volatile boolean byteBufPatching = false;
+	private volatile int glowBudget = -1;
+	private final Map<UUID, RetainedState> retained = new ConcurrentHashMap<>();
+	private volatile long retentionMillis = 0;
+	private volatile @NotNull WorldLeavePolicy worldLeavePolicy = WorldLeavePolicy.SUSPEND;
+	private final @NotNull GlowingChanges<GlowingChange> changes;
+	// teams received by the players online when the API has been disabled, as the clients keep them
+	private Map<Player, EnumSet<ChatColor>> disabledSentColors;
+
+	private static final int SNAPSHOT_MAGIC = 0x474C4F57; // "GLOW"
+	private static final byte SNAPSHOT_VERSION = 2; // 2: world of the entities
+	static final long SNAPSHOT_RETENTION = TimeUnit.MINUTES.toMillis(10); // when no retention has been set
+
 	/**
 	 * Initializes the Glowing API.
 	 *
@@ -56,12 +103,17 @@ public class GlowingEntities implements Listener {
 		Packets.ensureInitialized();
 
 		this.plugin = Objects.requireNonNull(plugin);
+		this.changes = new GlowingChanges<>(plugin);
 
 		enable();
 	}
 
 	/**
 	 * Enables the Glowing API.
+	 * <p>
+	 * The packets handler of a player is only installed once an entity glows for them, and removed when
+	 * no entity glows for them anymore, so this does not touch the connections of online players. The teams
+	 * received by players before the API was disabled are not created again.
 	 *
 	 * @see #disable()
 	 */
@@ -70,9 +122,27 @@ public class GlowingEntities implements Listener {
 			throw new IllegalStateException("The Glowing Entities API has already been enabled.");
 
 		plugin.getServer().getPluginManager().registerEvents(this, plugin);
-		glowing = new HashMap<>();
+		if (Packets.hasTrackingEvents) {
+			// Paper tells us when a player starts seeing an entity: we can push the glowing state at this moment
+			// instead of looking for spawn data in every packet
+			trackingListener = new TrackingListener();
+			plugin.getServer().getPluginManager().registerEvents(trackingListener, plugin);
+			trackingEngine = true;
+		}
+		glowing = new ConcurrentHashMap<>();
 		uid = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
 		enabled = true;
+
+		Map<Player, EnumSet<ChatColor>> sentColors = disabledSentColors;
+		disabledSentColors = null;
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			try {
+				createPlayerData(player, sentColors == null ? null : sentColors.get(player));
+				restoreRetained(player);
+			} catch (ReflectiveOperationException ex) {
+				ex.printStackTrace();
+			}
+		}
 	}
 
 	/**
@@ -82,21 +152,47 @@ public class GlowingEntities implements Listener {
 	 * {@link #unsetGlowing(int, Player)} will no longer be usable.
 	 *
 	 * @see #enable()
+	 * @see #disableAsync()
 	 */
 	public void disable() {
+		disableAsync();
+	}
+
+	/**
+	 * Disables the API, like {@link #disable()}.
+	 * <p>
+	 * The packets handlers are removed in parallel, each one on the event loop of its player's connection.
+	 *
+	 * @return a future completed once all packets handlers have been removed
+	 * @see #enable()
+	 */
+	public @NotNull CompletableFuture<Void> disableAsync() {
 		if (!enabled)
-			return;
+			return CompletableFuture.completedFuture(null);
 		HandlerList.unregisterAll(this);
+		if (trackingListener != null) {
+			HandlerList.unregisterAll(trackingListener);
+			trackingListener = null;
+			trackingEngine = false;
+		}
+		ruleMatches.clear();
+		// players which stay online keep the teams: they must not be created twice for them
+		disabledSentColors = new IdentityHashMap<>();
 		glowing.values().forEach(playerData -> {
-			try {
-				Packets.removePacketsHandler(playerData);
-			} catch (ReflectiveOperationException e) {
-				e.printStackTrace();
+			retain(playerData);
+			playerData.releaseTeamEntries();
+			synchronized (playerData) {
+				if (playerData.sentColors != null)
+					disabledSentColors.put(playerData.player, playerData.sentColors);
 			}
 		});
+		changes.close();
+		CompletableFuture<?>[] removals =
+				glowing.values().stream().map(Packets::removePacketsHandler).toArray(CompletableFuture[]::new);
 		glowing = null;
 		uid = 0;
 		enabled = false;
+		return CompletableFuture.allOf(removals);
 	}
 
 	private void ensureEnabled() {
@@ -104,9 +200,153 @@ public class GlowingEntities implements Listener {
 			throw new IllegalStateException("The Glowing Entities API is not enabled.");
 	}
 
+	@EventHandler
+	public void onJoin(PlayerJoinEvent event) {
+		// we prepare the team bookkeeping of the player as soon as possible, the packets handler will only
+		// be installed when an entity glows for them
+		try {
+			if (!glowing.containsKey(event.getPlayer())) {
+				createPlayerData(event.getPlayer(), null);
+				restoreRetained(event.getPlayer());
+			}
+		} catch (ReflectiveOperationException ex) {
+			ex.printStackTrace();
+		}
+	}
+
 	@EventHandler
 	public void onQuit(PlayerQuitEvent event) {
-		glowing.remove(event.getPlayer());
+		PlayerData playerData = glowing.remove(event.getPlayer());
+		if (playerData != null) {
+			retain(playerData);
+			playerData.releaseTeamEntries();
+			if (changes.isObserved()) {
+				playerData.glowingDatas.values().forEach(glowingData -> recordChange(glowingData, false));
+				playerData.suspended.values().forEach(
+						partition -> partition.values().forEach(glowingData -> recordChange(glowingData, false)));
+			}
+		}
+	}
+
+	@EventHandler
+	public void onWorldChange(PlayerChangedWorldEvent event) {
+		PlayerData playerData = glowing.get(event.getPlayer());
+		if (playerData == null)
+			return;
+		try {
+			enterWorld(playerData, event.getPlayer().getWorld().getUID());
+		} catch (ReflectiveOperationException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onMove(PlayerMoveEvent event) {
+		if (glowBudget < 0)
+			return;
+		PlayerData playerData = glowing.get(event.getPlayer());
+		if (playerData == null || !needsRanking(playerData.lastRankLocation, event.getTo()))
+			return;
+		try {
+			updateBudget(playerData);
+		} catch (ReflectiveOperationException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Limits the amount of entities a single player can see glowing at the same time.
+	 * <p>
+	 * When a player has more glowing entities than the budget, only the ones with the lowest priority
+	 * value are displayed. The priority of an entity is its squared distance to the player, unless a
+	 * custom one has been set with {@link #setGlowingPriority(int, Player, double)}. Entities glowing from
+	 * an entity ID and without custom priority come last.
+	 * <p>
+	 * The other entities are still remembered, and are displayed again as soon as they rank back in, for
+	 * instance when the player moves.
+	 *
+	 * @param budget maximum amount of glowing entities per player, or a negative number for no limit
+	 * @throws ReflectiveOperationException
+	 */
+	public void setGlowBudget(int budget) throws ReflectiveOperationException {
+		ensureEnabled();
+		this.glowBudget = budget;
+		for (PlayerData playerData : glowing.values()) {
+			updateBudget(playerData);
+		}
+	}
+
+	/**
+	 * Sets a custom priority for an entity glowing for a player, used when a glow budget is set.
+	 *
+	 * @param entityID entity id of the glowing entity
+	 * @param receiver player which sees the entity glowing
+	 * @param priority priority of the entity, lower values being displayed first, or {@link Double#NaN} to
+	 *        use the distance to the player
+	 * @throws ReflectiveOperationException
+	 * @see #setGlowBudget(int)
+	 */
+	public void setGlowingPriority(int entityID, Player receiver, double priority) throws ReflectiveOperationException {
+		ensureEnabled();
+		PlayerData playerData = glowing.get(receiver);
+		if (playerData == null)
+			return;
+		GlowingData glowingData = playerData.glowingDatas.get(entityID);
+		if (glowingData == null)
+			return;
+		glowingData.priority = priority;
+		if (glowBudget >= 0)
+			updateBudget(playerData);
+	}
+
+	private void updateBudget(@NotNull PlayerData playerData) throws ReflectiveOperationException {
+		int budget = glowBudget;
+		Location viewerLocation = playerData.player.getLocation();
+		playerData.lastRankLocation = viewerLocation;
+		Set<GlowingData> displayed = budget < 0 ? null
+				: selectFirst(playerData.glowingDatas.values(), data -> data.getPriority(viewerLocation), budget);
+		Packets.batch(() -> {
+			for (GlowingData glowingData : playerData.glowingDatas.values()) {
+				boolean enabled = displayed == null || displayed.contains(glowingData);
+				if (glowingData.enabled != enabled) {
+					glowingData.enabled = enabled;
+					Packets.updateGlowingState(glowingData);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Checks if the player has moved enough since the last time the glowing budget has been computed.
+	 */
+	static boolean needsRanking(Location lastLocation, Location newLocation) {
+		return lastLocation == null || !Objects.equals(lastLocation.getWorld(), newLocation.getWorld())
+				|| lastLocation.distanceSquared(newLocation) >= 16;
+	}
+
+	/**
+	 * Selects the values with the lowest priority.
+	 */
+	static <T> @NotNull Set<T> selectFirst(@NotNull Collection<T> values, @NotNull ToDoubleFunction<T> priority,
+			int amount) {
+		if (values.size() <= amount)
+			return new HashSet<>(values);
+
+		record Ranked<T>(T value, double priority) {}
+		// max-heap containing the best values found so far
+		PriorityQueue<Ranked<T>> heap =
+				new PriorityQueue<>(amount + 1, Comparator.comparingDouble((Ranked<T> ranked) -> ranked.priority).reversed());
+		for (T value : values) {
+			heap.add(new Ranked<>(value, priority.applyAsDouble(value)));
+			if (heap.size() > amount)
+				heap.poll();
+		}
+
+		Set<T> selected = new HashSet<>(amount);
+		for (Ranked<T> ranked : heap) {
+			selected.add(ranked.value);
+		}
+		return selected;
 	}
 
 	/**
@@ -130,7 +370,7 @@ public class GlowingEntities implements Listener {
 	 */
 	public void setGlowing(Entity entity, Player receiver, ChatColor color) throws ReflectiveOperationException {
 		String teamID = entity instanceof Player ? entity.getName() : entity.getUniqueId().toString();
-		setGlowing(entity.getEntityId(), teamID, receiver, color, Packets.getEntityFlags(entity));
+		setGlowing(entity.getEntityId(), teamID, receiver, color, Packets.getEntityFlags(entity), entity);
 	}
 
 	/**
@@ -172,40 +412,81 @@ public class GlowingEntities implements Listener {
 	 */
 	public void setGlowing(int entityID, String teamID, Player receiver, ChatColor color, byte otherFlags)
 			throws ReflectiveOperationException {
+		setGlowing(entityID, teamID, receiver, color, otherFlags, null);
+	}
+
+	private void setGlowing(int entityID, String teamID, Player receiver, ChatColor color, byte otherFlags,
+			@Nullable Entity entity) throws ReflectiveOperationException {
+		GlowingEvents.GlowOperation event = new GlowingEvents.GlowOperation();
+		event.begin();
+		try {
+			// all the packets of the operation are written at once
+			Packets.batch(() -> applyGlowing(entityID, teamID, receiver, color, otherFlags, entity, true));
+		} finally {
+			event.commit("set", entityID, receiver, color);
+		}
+	}
+
+	private void applyGlowing(int entityID, String teamID, Player receiver, ChatColor color, byte otherFlags,
+			@Nullable Entity entity, boolean rank) throws ReflectiveOperationException {
 		ensureEnabled();
 		if (color != null && !color.isColor())
 			throw new IllegalArgumentException("ChatColor must be a color format");
 
-		PlayerData playerData = glowing.get(receiver);
-		if (playerData == null) {
-			playerData = new PlayerData(this, receiver);
-			Packets.addPacketsHandler(playerData);
-			glowing.put(receiver, playerData);
-		}
+		PlayerData playerData = getPlayerData(receiver);
 
 		GlowingData glowingData = playerData.glowingDatas.get(entityID);
+		boolean resumed = false;
+		if (glowingData == null && !playerData.suspended.isEmpty()) {
+			// the entity glowed for the player in another world: its state is reused
+			glowingData = resumeSuspended(playerData, entityID, receiver.getWorld().getUID());
+			resumed = glowingData != null;
+		}
 		if (glowingData == null) {
 			// the player did not have datas related to the entity: we must create the glowing status
-			glowingData = new GlowingData(playerData, entityID, teamID, color, otherFlags);
-			playerData.glowingDatas.put(entityID, glowingData);
+			GlowingData created = new GlowingData(playerData, entityID, teamID, color, otherFlags);
+			if (entity != null)
+				created.setEntity(entity);
+			else
+				created.world = receiver.getWorld().getUID();
+			glowingData = playerData.glowingDatas.putIfAbsent(entityID, created);
+			if (glowingData == null) {
+				attachHandler(playerData);
+				recordChange(created, true);
+
+				if (color != null)
+					Packets.setGlowingColor(created);
+				if (glowBudget >= 0) {
+					// the entity will only be displayed if it ranks within the budget
+					created.enabled = false;
+					if (rank)
+						updateBudget(playerData);
+				} else {
+					Packets.createGlowing(created);
+				}
+				return;
+			}
+			// another thread made the entity glow at the same time: we update its state instead,
+			// and our reference to the team entry must not be kept
+			created.releaseTeamEntry();
+		}
 
-			Packets.createGlowing(glowingData);
-			if (color != null)
-				Packets.setGlowingColor(glowingData);
-		} else {
-			// the player already had datas related to the entity: we must update the glowing status
+		// the player already had datas related to the entity: we must update the glowing status
 
-			if (Objects.equals(glowingData.color, color))
-				return; // nothing changed
+		if (resumed)
+			Packets.updateGlowingState(glowingData); // the client has not received it in this world
 
-			if (color == null) {
-				Packets.removeGlowingColor(glowingData);
-				glowingData.color = color; // we must set the color after in order to fetch the previous team
-			} else {
-				glowingData.color = color;
-				Packets.setGlowingColor(glowingData);
-			}
+		if (Objects.equals(glowingData.color, color))
+			return; // nothing changed
+
+		if (color == null) {
+			Packets.removeGlowingColor(glowingData);
+			glowingData.color = color; // we must set the color after in order to fetch the previous team
+		} else {
+			glowingData.color = color;
+			Packets.setGlowingColor(glowingData);
 		}
+		recordChange(glowingData, true);
 	}
 
 	/**
@@ -231,29 +512,965 @@ public class GlowingEntities implements Listener {
 	 * @throws ReflectiveOperationException
 	 */
 	public void unsetGlowing(int entityID, Player receiver) throws ReflectiveOperationException {
+		GlowingEvents.GlowOperation event = new GlowingEvents.GlowOperation();
+		event.begin();
+		try {
+			Packets.batch(() -> clearGlowing(entityID, receiver, true));
+		} finally {
+			event.commit("unset", entityID, receiver, null);
+		}
+	}
+
+	private void clearGlowing(int entityID, Player receiver, boolean rank) throws ReflectiveOperationException {
 		ensureEnabled();
 		PlayerData playerData = glowing.get(receiver);
 		if (playerData == null)
 			return; // the player do not have any entity glowing
 
-		GlowingData glowingData = playerData.glowingDatas.remove(entityID);
-		if (glowingData == null)
-			return; // the player did not have this entity glowing
+		GlowingData glowingData = playerData.glowingDatas.remove(entityID);
+		if (glowingData == null) {
+			// the entity may glow in a world the player has left: only the team entry is left on the client
+			glowingData = playerData.suspended.isEmpty() ? null : playerData.removeSuspended(entityID);
+			if (glowingData != null) {
+				if (glowingData.color != null)
+					Packets.removeGlowingColor(glowingData);
+				glowingData.releaseTeamEntry();
+				recordChange(glowingData, false);
+			}
+			return;
+		}
+
+		boolean wasDisplayed = glowingData.enabled;
+		glowingData.enabled = false;
+		Packets.removeGlowing(glowingData);
+
+		if (glowingData.color != null)
+			Packets.removeGlowingColor(glowingData);
+		glowingData.releaseTeamEntry();
+		recordChange(glowingData, false);
+
+		if (rank && wasDisplayed && glowBudget >= 0)
+			updateBudget(playerData); // another entity may now rank in
+
+		// if the player do not have any other entity glowing, the packets handler is not needed anymore.
+		// We still keep the player datas as they store which teams the player received:
+		// if we do not save this information, team would be created
+		// twice for the player, and BungeeCord does not like that
+		detachHandlerIfIdle(playerData);
+	}
+
+	/**
+	 * Forgets the glowing state of entities which have just been destroyed on the client of the player.
+	 * <p>
+	 * No metadata is sent for these entities, and their team entries are removed with one packet per color.
+	 */
+	void unsetGlowingDestroyed(Player receiver, int... entityIDs) throws ReflectiveOperationException {
+		GlowingEvents.GlowOperation event = new GlowingEvents.GlowOperation();
+		event.begin();
+		try {
+			clearGlowingDestroyed(receiver, entityIDs);
+		} finally {
+			event.commit("unset destroyed", entityIDs.length == 1 ? entityIDs[0] : -1, receiver, null,
+					entityIDs.length);
+		}
+	}
+
+	private void clearGlowingDestroyed(Player receiver, int... entityIDs) throws ReflectiveOperationException {
+		PlayerData playerData = glowing.get(receiver);
+		if (playerData == null)
+			return;
+
+		Map<ChatColor, List<String>> teamEntries = new EnumMap<>(ChatColor.class);
+		boolean wasDisplayed = false;
+		for (int entityID : entityIDs) {
+			GlowingData glowingData = playerData.glowingDatas.remove(entityID);
+			if (glowingData == null && !playerData.suspended.isEmpty())
+				glowingData = playerData.removeSuspended(entityID);
+			if (glowingData == null)
+				continue;
+
+			wasDisplayed |= glowingData.enabled;
+			glowingData.enabled = false;
+			if (!playerData.pendingUpdates.isEmpty())
+				playerData.pendingUpdates.remove(entityID, glowingData); // the ID may be reused by a new entity
+			if (glowingData.color != null)
+				teamEntries.computeIfAbsent(glowingData.color, key -> new ArrayList<>()).add(glowingData.teamID);
+			glowingData.releaseTeamEntry();
+			recordChange(glowingData, false);
+		}
+
+		Packets.removeTeamEntries(receiver, teamEntries);
+
+		if (wasDisplayed && glowBudget >= 0)
+			updateBudget(playerData);
+
+		detachHandlerIfIdle(playerData);
+	}
+
+	/**
+	 * Makes exactly the entities passed as a parameter glow for the player, with their associated color
+	 * (<code>null</code> for the default team color).
+	 * <p>
+	 * The set is compared with the current glowing state of the player: entities which are not in the set
+	 * anymore stop glowing, new ones start glowing and only the entities whose color changed are updated.
+	 * All resulting packets are sent at once.
+	 *
+	 * @param receiver player which will see the entities glowing
+	 * @param entities all the entities that must glow for the player, with their colors
+	 * @throws ReflectiveOperationException
+	 * @see #setGlowingSet(Player, Map, IntFunction)
+	 */
+	public void setGlowingSet(@NotNull Player receiver, @NotNull Map<? extends Entity, ChatColor> entities)
+			throws ReflectiveOperationException {
+		Map<Integer, Entity> byID = new HashMap<>(entities.size() * 2);
+		Map<Integer, ChatColor> colors = new HashMap<>(entities.size() * 2);
+		entities.forEach((entity, color) -> {
+			byID.put(entity.getEntityId(), entity);
+			colors.put(entity.getEntityId(), color);
+		});
+		setGlowingSet(receiver, colors, entityID -> {
+			Entity entity = byID.get(entityID);
+			return entity instanceof Player ? entity.getName() : entity.getUniqueId().toString();
+		}, byID::get);
+	}
+
+	/**
+	 * Makes exactly the entities with the IDs passed as a parameter glow for the player, with their
+	 * associated color (<code>null</code> for the default team color).
+	 * <p>
+	 * The set is compared with the current glowing state of the player: entities which are not in the set
+	 * anymore stop glowing, new ones start glowing and only the entities whose color changed are updated.
+	 * All resulting packets are sent at once.
+	 *
+	 * @param receiver player which will see the entities glowing
+	 * @param entities IDs of all the entities that must glow for the player, with their colors
+	 * @param teamIDs function giving the internal string used to add an entity to a team, only called for
+	 *        entities which were not glowing yet
+	 * @throws ReflectiveOperationException
+	 */
+	public void setGlowingSet(@NotNull Player receiver, @NotNull Map<Integer, ChatColor> entities,
+			@NotNull IntFunction<String> teamIDs) throws ReflectiveOperationException {
+		setGlowingSet(receiver, entities, teamIDs, entityID -> null);
+	}
+
+	private void setGlowingSet(@NotNull Player receiver, @NotNull Map<Integer, ChatColor> entities,
+			@NotNull IntFunction<String> teamIDs, @NotNull IntFunction<Entity> bukkitEntities)
+			throws ReflectiveOperationException {
+		GlowingEvents.GlowOperation event = new GlowingEvents.GlowOperation();
+		event.begin();
+		try {
+			applyGlowingSet(receiver, entities, teamIDs, bukkitEntities);
+		} finally {
+			event.commit("set all", -1, receiver, null, entities.size());
+		}
+	}
+
+	private void applyGlowingSet(@NotNull Player receiver, @NotNull Map<Integer, ChatColor> entities,
+			@NotNull IntFunction<String> teamIDs, @NotNull IntFunction<Entity> bukkitEntities)
+			throws ReflectiveOperationException {
+		ensureEnabled();
+		for (ChatColor color : entities.values()) {
+			if (color != null && !color.isColor())
+				throw new IllegalArgumentException("ChatColor must be a color format");
+		}
+
+		PlayerData playerData = getPlayerData(receiver);
+		Packets.batch(() -> {
+			// the budget is computed once at the end instead of after each change
+			List<Integer> removed = new ArrayList<>();
+			for (Integer entityID : playerData.glowingDatas.keySet()) {
+				if (!entities.containsKey(entityID))
+					removed.add(entityID);
+			}
+			for (Map<Integer, GlowingData> partition : playerData.suspended.values()) {
+				for (Integer entityID : partition.keySet()) {
+					if (!entities.containsKey(entityID))
+						removed.add(entityID);
+				}
+			}
+			for (int entityID : removed)
+				clearGlowing(entityID, receiver, false);
+
+			for (var entry : entities.entrySet()) {
+				int entityID = entry.getKey();
+				GlowingData glowingData = playerData.glowingDatas.get(entityID);
+				if (glowingData != null && Objects.equals(glowingData.color, entry.getValue()))
+					continue; // nothing changed
+
+				Entity entity = bukkitEntities.apply(entityID);
+				String teamID = glowingData != null ? glowingData.teamID : teamIDs.apply(entityID);
+				byte otherFlags = glowingData == null && entity != null ? Packets.getEntityFlags(entity) : 0;
+				applyGlowing(entityID, teamID, receiver, entry.getValue(), otherFlags, entity, false);
+			}
+
+			if (glowBudget >= 0)
+				updateBudget(playerData);
+		});
+	}
+
+	/**
+	 * Enables or disables the low-level patching mode.
+	 * <p>
+	 * When enabled, metadata packets sent by the server which only need their flags to be changed are
+	 * not copied and replaced anymore: instead, the flags byte is patched directly in the encoded buffer
+	 * of the viewer, right after the packet encoder and before compression. This avoids any allocation
+	 * for players watching a lot of glowing entities.
+	 * <p>
+	 * Packets which do not have the expected layout, or pipelines without the vanilla encoder, fall back
+	 * to the default mode.
+	 *
+	 * @param enabled <code>true</code> to patch encoded buffers when possible
+	 */
+	public void setByteBufPatching(boolean enabled) {
+		this.byteBufPatching = enabled;
+	}
+
+	/**
+	 * Keeps the glowing state of players for some time after they leave the server or after the API is
+	 * disabled. If they come back before the end of this duration, their state is restored at once: the
+	 * entities are made glowing again without any call to {@link #setGlowing(Entity, Player, ChatColor)}.
+	 * <p>
+	 * Entities glowing by their Bukkit instance are found again by their UUID, other ones are restored with
+	 * the same entity ID. Entities which are not loaded when the state is restored are kept until the end of
+	 * the retention, and glow again once the player starts tracking them (on Paper).
+	 *
+	 * @param retention how long to keep the state, or <code>null</code> to forget it immediately (default)
+	 */
+	public void setStateRetention(@Nullable Duration retention) {
+		this.retentionMillis = retention == null ? 0 : retention.toMillis();
+		if (retentionMillis <= 0)
+			retained.clear();
+	}
+
+	/**
+	 * Writes the glowing state of all players, online ones and retained ones, in a compact binary format.
+	 * <p>
+	 * Only the entities made glowing by their Bukkit instance are written: entity IDs are not kept when the
+	 * server restarts, so the other ones cannot be found again.
+	 *
+	 * @param file file to write, for instance in the data folder of the plugin
+	 * @throws IOException if the file cannot be written
+	 * @see #loadSnapshot(File)
+	 */
+	public void saveSnapshot(@NotNull File file) throws IOException {
+		ensureEnabled();
+		long now = System.currentTimeMillis();
+		Map<UUID, List<RetainedGlowing>> states = new HashMap<>();
+		retained.forEach((uuid, state) -> {
+			if (state.expiration >= now)
+				states.computeIfAbsent(uuid, key -> new ArrayList<>()).addAll(state.glowings);
+		});
+		for (PlayerData playerData : glowing.values()) {
+			if (playerData.hasGlowing())
+				states.computeIfAbsent(playerData.player.getUniqueId(), key -> new ArrayList<>())
+						.addAll(RetainedGlowing.of(playerData));
+		}
+		states.values().forEach(glowings -> glowings.removeIf(retainedGlowing -> retainedGlowing.entityUUID == null));
+		states.values().removeIf(List::isEmpty);
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeByte(SNAPSHOT_VERSION);
+			out.writeInt(states.size());
+			for (var entry : states.entrySet()) {
+				out.writeLong(entry.getKey().getMostSignificantBits());
+				out.writeLong(entry.getKey().getLeastSignificantBits());
+				out.writeInt(entry.getValue().size());
+				for (RetainedGlowing retainedGlowing : entry.getValue())
+					retainedGlowing.write(out);
+			}
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by {@link #saveSnapshot(File)}. The state of online players is restored
+	 * immediately, the one of other players is restored if they join before the end of the retention set
+	 * with {@link #setStateRetention(Duration)}, or within 10 minutes if no retention has been set.
+	 *
+	 * @param file file to read
+	 * @throws IOException if the file cannot be read or is not a snapshot
+	 * @throws ReflectiveOperationException
+	 */
+	public void loadSnapshot(@NotNull File file) throws IOException, ReflectiveOperationException {
+		ensureEnabled();
+		long retention = retentionMillis;
+		long expiration = System.currentTimeMillis() + (retention > 0 ? retention : SNAPSHOT_RETENTION);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException("Not a glowing entities snapshot: " + file);
+			byte version = in.readByte();
+			if (version < 1 || version > SNAPSHOT_VERSION)
+				throw new IOException("Unsupported glowing entities snapshot version " + version + ": " + file);
+			int players = in.readInt();
+			for (int i = 0; i < players; i++) {
+				UUID uuid = new UUID(in.readLong(), in.readLong());
+				int size = in.readInt();
+				List<RetainedGlowing> glowings = new ArrayList<>(size);
+				for (int j = 0; j < size; j++) {
+					RetainedGlowing retainedGlowing = RetainedGlowing.read(in, version);
+					if (retainedGlowing.entityUUID != null) // the entity IDs of the previous run are meaningless
+						glowings.add(retainedGlowing);
+				}
+				if (!glowings.isEmpty())
+					retained.put(uuid, new RetainedState(glowings, expiration));
+			}
+		}
+
+		for (Player player : plugin.getServer().getOnlinePlayers())
+			restoreRetained(player);
+	}
+
+	private void retain(@NotNull PlayerData playerData) {
+		long retention = retentionMillis;
+		if (retention <= 0 || !playerData.hasGlowing())
+			return;
+		long now = System.currentTimeMillis();
+		purgeRetained(now);
+		List<RetainedGlowing> glowings = RetainedGlowing.of(playerData);
+		RetainedState pending = retained.get(playerData.player.getUniqueId());
+		if (pending != null)
+			glowings.addAll(pending.glowings); // entities which were not loaded since the last restoration
+		retained.put(playerData.player.getUniqueId(), new RetainedState(glowings, now + retention));
+	}
+
+	private void purgeRetained(long now) {
+		retained.values().removeIf(state -> state.expiration < now);
+	}
+
+	private void restoreRetained(@NotNull Player player) throws ReflectiveOperationException {
+		if (retained.isEmpty())
+			return;
+		purgeRetained(System.currentTimeMillis()); // the states of the players who do not come back are dropped
+		RetainedState state = retained.remove(player.getUniqueId());
+		if (state == null)
+			return;
+
+		PlayerData playerData = getPlayerData(player);
+		UUID world = player.getWorld().getUID();
+		Map<ChatColor, List<String>> teamEntries = new EnumMap<>(ChatColor.class);
+		List<Object> metadataPackets = new ArrayList<>();
+		List<RetainedGlowing> unloaded = new ArrayList<>();
+		for (RetainedGlowing retainedGlowing : state.glowings) {
+			int entityID = retainedGlowing.entityID;
+			Entity entity = null;
+			if (retainedGlowing.entityUUID != null) {
+				// the entity may have another ID, for instance after a restart
+				entity = Bukkit.getEntity(retainedGlowing.entityUUID);
+				if (entity == null) {
+					// the entity is not loaded: it is restored when the player starts tracking it
+					unloaded.add(retainedGlowing);
+					continue;
+				}
+				entityID = entity.getEntityId();
+			}
+
+			GlowingData glowingData = new GlowingData(playerData, entityID, retainedGlowing.teamID,
+					retainedGlowing.color, retainedGlowing.otherFlags);
+			if (entity != null)
+				glowingData.setEntity(entity);
+			else
+				glowingData.world = retainedGlowing.world != null ? retainedGlowing.world : world;
+			glowingData.priority = retainedGlowing.priority;
+			glowingData.enabled = glowBudget < 0;
+			boolean active = glowingData.world == null || world.equals(glowingData.world);
+			Map<Integer, GlowingData> partition = active ? playerData.glowingDatas
+					: playerData.suspended.computeIfAbsent(glowingData.world, key -> new ConcurrentHashMap<>());
+			if (partition.putIfAbsent(entityID, glowingData) != null) {
+				glowingData.releaseTeamEntry();
+				continue; // the entity has been made glowing again in the meantime
+			}
+			recordChange(glowingData, true);
+
+			if (glowingData.color != null)
+				teamEntries.computeIfAbsent(glowingData.color, key -> new ArrayList<>()).add(glowingData.teamID);
+			if (active && glowingData.enabled)
+				metadataPackets.add(Packets.createMetadata(entityID, Packets.computeFlags(glowingData), true));
+		}
+		if (!unloaded.isEmpty())
+			retained.put(player.getUniqueId(), new RetainedState(unloaded, state.expiration));
+		if (!playerData.hasGlowing())
+			return;
+
+		attachHandler(playerData);
+		// everything is sent at once: one team packet per color and the metadata of the visible entities
+		List<Object> packets = Packets.createTeamEntriesPackets(playerData, teamEntries);
+		packets.addAll(metadataPackets);
+		Packets.sendPackets(playerData.player, packets.toArray());
+
+		if (glowBudget >= 0)
+			updateBudget(playerData);
+	}
+
+	/**
+	 * Restores the retained glowing state of an entity which was not loaded when the player joined.
+	 */
+	private void restoreRetained(@NotNull Player player, @NotNull Entity entity) throws ReflectiveOperationException {
+		UUID uuid = player.getUniqueId();
+		RetainedState state = retained.get(uuid);
+		if (state == null)
+			return;
+		if (state.expiration < System.currentTimeMillis()) {
+			retained.remove(uuid, state);
+			return;
+		}
+
+		for (RetainedGlowing retainedGlowing : state.glowings) {
+			if (entity.getUniqueId().equals(retainedGlowing.entityUUID)) {
+				List<RetainedGlowing> others = new ArrayList<>(state.glowings);
+				others.remove(retainedGlowing);
+				boolean removed = others.isEmpty() ? retained.remove(uuid, state)
+						: retained.replace(uuid, state, new RetainedState(others, state.expiration));
+				if (removed) {
+					applyGlowing(entity.getEntityId(), retainedGlowing.teamID, player, retainedGlowing.color,
+							Packets.getEntityFlags(entity), entity, true);
+					GlowingData glowingData = getPlayerData(player).glowingDatas.get(entity.getEntityId());
+					if (glowingData != null)
+						glowingData.priority = retainedGlowing.priority;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Chooses what happens to the glowing entities of a player located in a world they leave.
+	 * <p>
+	 * Only the entities made glowing from their ID are concerned: the ones made glowing from their Bukkit
+	 * instance keep glowing if they come along with the player, for instance through a portal. Entities
+	 * suspended this way also glow again if the player starts tracking them in another world (on Paper).
+	 *
+	 * @param policy policy applied when a player changes world, {@link WorldLeavePolicy#SUSPEND} by default
+	 */
+	public void setWorldLeavePolicy(@NotNull WorldLeavePolicy policy) {
+		this.worldLeavePolicy = Objects.requireNonNull(policy);
+	}
+
+	/**
+	 * Gets a stream of the changes made to the glowing entities of all players.
+	 * <p>
+	 * The changes of a tick are published at once, at the beginning of the next tick, and delivered to the
+	 * subscribers asynchronously. Each subscriber can buffer a limited amount of batches: if it does not
+	 * request them fast enough, the next batches are dropped for it. Entities glowing because of
+	 * {@link GlowingRule rules} are not part of the stream.
+	 * <p>
+	 * Subscriptions are completed when the API is disabled.
+	 *
+	 * @return a publisher of lists of changes
+	 */
+	public @NotNull Flow.Publisher<List<GlowingChange>> changes() {
+		return changes.publisher();
+	}
+
+	private void recordChange(@NotNull GlowingData glowingData, boolean glowing) {
+		if (changes.isObserved())
+			changes.record(new GlowingChange(glowingData.player.player.getUniqueId(), glowingData.entityID,
+					glowing ? glowingData.color : null, glowing));
+	}
+
+	/**
+	 * Moves the glowing datas of other worlds out of the ones looked up by the packets handler, and brings
+	 * back the ones of the entered world if they have been suspended.
+	 */
+	private void enterWorld(@NotNull PlayerData playerData, @NotNull UUID world) throws ReflectiveOperationException {
+		boolean evict = worldLeavePolicy == WorldLeavePolicy.EVICT;
+		// the rules will be applied again when the player tracks the entities of the entered world
+		playerData.ruleCandidates.clear();
+		playerData.ruleGlowing.clear();
+		playerData.ruleSentFlags.clear();
+		Packets.batch(() -> {
+			for (Iterator<GlowingData> iterator = playerData.glowingDatas.values().iterator(); iterator.hasNext();) {
+				GlowingData glowingData = iterator.next();
+				// the client forgets the entities of the world it leaves
+				glowingData.sentFlags = -1;
+				glowingData.tracked = false;
+				if (glowingData.world == null || world.equals(glowingData.world))
+					continue; // entities glowing from their Bukkit instance keep their ID in every world
+				iterator.remove();
+				playerData.pendingUpdates.remove(glowingData.entityID, glowingData);
+				if (!evict) {
+					playerData.suspended.computeIfAbsent(glowingData.world, key -> new ConcurrentHashMap<>())
+							.put(glowingData.entityID, glowingData);
+				} else {
+					if (glowingData.color != null)
+						Packets.removeGlowingColor(glowingData);
+					glowingData.releaseTeamEntry();
+					recordChange(glowingData, false);
+				}
+			}
+		});
+
+		Map<Integer, GlowingData> entered = playerData.suspended.remove(world);
+		if (entered != null) {
+			// the state will be sent when the entities are spawned again for the player
+			entered.forEach((entityID, glowingData) -> {
+				if (playerData.glowingDatas.putIfAbsent(entityID, glowingData) != null)
+					glowingData.releaseTeamEntry(); // the entity has been made glowing again in the meantime
+			});
+			attachHandler(playerData);
+		} else {
+			detachHandlerIfIdle(playerData);
+		}
+
+		if (glowBudget >= 0)
+			updateBudget(playerData);
+	}
+
+	/**
+	 * Brings back the glowing data of an entity which glowed for the player in a world they had left, now
+	 * that the entity is in the world of the player.
+	 */
+	private @Nullable GlowingData resumeSuspended(@NotNull PlayerData playerData, int entityID, @NotNull UUID world)
+			throws ReflectiveOperationException {
+		GlowingData glowingData = playerData.removeSuspended(entityID);
+		if (glowingData == null)
+			return null;
+		glowingData.world = world;
+		GlowingData current = playerData.glowingDatas.putIfAbsent(entityID, glowingData);
+		if (current != null) {
+			glowingData.releaseTeamEntry(); // the entity has been made glowing again in the meantime
+			return current;
+		}
+		attachHandler(playerData);
+		return glowingData;
+	}
+
+	/**
+	 * Adds an entry to the team of a color for a player, without making any entity glow. Used for fake
+	 * entities which already carry the glowing flag.
+	 */
+	void sendTeamEntry(@NotNull Player receiver, @NotNull String teamID, @NotNull ChatColor color)
+			throws ReflectiveOperationException {
+		ensureEnabled();
+		Packets.setTeamColor(getPlayerData(receiver), teamID, color);
+	}
+
+	private @NotNull PlayerData getPlayerData(@NotNull Player receiver) throws ReflectiveOperationException {
+		PlayerData playerData = glowing.get(receiver);
+		if (playerData == null) {
+			createPlayerData(receiver, null);
+			playerData = glowing.get(receiver);
+		}
+		return playerData;
+	}
+
+	private void createPlayerData(@NotNull Player player, @Nullable EnumSet<ChatColor> sentColors)
+			throws ReflectiveOperationException {
+		PlayerData playerData = new PlayerData(this, player);
+		playerData.sentColors = sentColors;
+		if (glowing.putIfAbsent(player, playerData) != null)
+			return; // another thread was faster
+
+		// we are the ones who created the data: no other thread will send the teams
+		Packets.sendCreatedTeams(playerData);
+	}
+
+	/**
+	 * Installs the packets handler of the player if it is not already installed. Must be called after the
+	 * glowing state has been registered, so that a concurrent {@link #detachHandlerIfIdle(PlayerData)} sees
+	 * it.
+	 */
+	private void attachHandler(@NotNull PlayerData playerData) throws ReflectiveOperationException {
+		synchronized (playerData) {
+			if (playerData.packetsHandler == null)
+				Packets.addPacketsHandler(playerData);
+		}
+	}
+
+	/**
+	 * Removes the packets handler of the player if no entity glows for them anymore, so that their
+	 * packets are not inspected for nothing.
+	 */
+	private void detachHandlerIfIdle(@NotNull PlayerData playerData) {
+		synchronized (playerData) {
+			// pending updates need the handler to be flushed: the last one will call this method again
+			if (playerData.packetsHandler != null && playerData.glowingDatas.isEmpty()
+					&& playerData.pendingUpdates.isEmpty() && playerData.ruleGlowing.isEmpty()) {
+				Packets.removePacketsHandler(playerData);
+				playerData.ruleSentFlags.clear();
+			}
+		}
+	}
+
+	/**
+	 * Runs a task after some ticks, on the thread owning the player on region-threaded servers (Folia),
+	 * or asynchronously on other servers.
+	 */
+	void runLater(@NotNull Player player, @NotNull Runnable task, long delay) {
+		if (Packets.isFolia) {
+			player.getScheduler().runDelayed(plugin, scheduledTask -> task.run(), null, delay);
+		} else {
+			Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, task, delay);
+		}
+	}
+
+	/**
+	 * Registers a rule which will make glow all entities matching the entity predicate, for all players
+	 * matching the viewer predicate.
+	 * <p>
+	 * The viewer predicate is tested each time a player starts tracking an entity, like the one of
+	 * {@link #addGlowingRule(Predicate, BiPredicate, ChatColor)}.
+	 * <p>
+	 * <i>Can only be used on Paper-based servers.</i>
+	 *
+	 * @param entityPredicate predicate that tests which entities must glow, whatever the player
+	 * @param viewerPredicate predicate that tests which players will see the entities glowing
+	 * @param color color of the glowing effect, or <code>null</code> to keep the default team color
+	 * @return the registered rule, which can be passed to {@link #removeGlowingRule(GlowingRule)}
+	 */
+	public @NotNull GlowingRule addGlowingRule(@NotNull Predicate<Entity> entityPredicate,
+			@NotNull Predicate<Player> viewerPredicate, @Nullable ChatColor color) {
+		Objects.requireNonNull(viewerPredicate);
+		return addGlowingRule(entityPredicate, (viewer, entity) -> viewerPredicate.test(viewer), color);
+	}
+
+	/**
+	 * Registers a rule which will make glow all entities matching the entity predicate, for the players
+	 * which see them glowing according to the viewer predicate.
+	 * <p>
+	 * Rules are not evaluated eagerly. The entity predicate must only depend on the entity: it is tested
+	 * once per entity, the first time a player starts tracking it, and its result is cached until the rules
+	 * change. The viewer predicate is tested each time a player starts tracking an entity matching the
+	 * entity predicate, on the thread owning the entity: it can depend on the permissions of the player or
+	 * on their distance to the entity. Call {@link #refreshGlowingRules(Player)} to test it again for the
+	 * entities a player already tracks, for instance after a change of their permissions. An explicit call
+	 * to {@link #setGlowing(Entity, Player, ChatColor)} always has precedence over rules.
+	 * <p>
+	 * Entities that are already tracked by a player when the rule is added will only glow once the
+	 * player tracks them again.
+	 * <p>
+	 * <i>Can only be used on Paper-based servers.</i>
+	 *
+	 * @param entityPredicate predicate that tests which entities can glow, whatever the player
+	 * @param viewerPredicate predicate that tests if a player sees an entity glowing
+	 * @param color color of the glowing effect, or <code>null</code> to keep the default team color
+	 * @return the registered rule, which can be passed to {@link #removeGlowingRule(GlowingRule)}
+	 */
+	public @NotNull GlowingRule addGlowingRule(@NotNull Predicate<Entity> entityPredicate,
+			@NotNull BiPredicate<Player, Entity> viewerPredicate, @Nullable ChatColor color) {
+		ensureEnabled();
+		if (!Packets.hasTrackingEvents)
+			throw new UnsupportedOperationException("Glowing rules can only be used on a Paper server.");
+		if (color != null && !color.isColor())
+			throw new IllegalArgumentException("ChatColor must be a color format");
+
+		GlowingRule rule =
+				new GlowingRule(Objects.requireNonNull(entityPredicate), Objects.requireNonNull(viewerPredicate), color);
+		rules.add(rule);
+		ruleMatches.clear(); // previous results do not know about this rule
+		return rule;
+	}
+
+	/**
+	 * Unregisters a rule previously added with {@link #addGlowingRule(Predicate, BiPredicate, ChatColor)}.
+	 * <p>
+	 * Entities that are currently tracked will keep their glowing effect until the server sends their
+	 * metadata again.
+	 *
+	 * @param rule rule to remove
+	 */
+	public void removeGlowingRule(@NotNull GlowingRule rule) {
+		ensureEnabled();
+		if (rules.remove(rule)) {
+			rule.removed = true; // the results of the players tracking an entity may still reference it
+			ruleMatches.clear();
+			glowing.values().forEach(playerData -> {
+				playerData.ruleGlowing.values().removeIf(glowingRule -> glowingRule == rule);
+				playerData.ruleSentFlags.clear(); // the handler may not follow those entities anymore
+				detachHandlerIfIdle(playerData);
+			});
+		}
+	}
+
+	/**
+	 * Tests again the viewer predicates of the rules for the entities a player currently tracks, for
+	 * instance after a change of their permissions. The entities start or stop glowing accordingly.
+	 * <p>
+	 * Must be called from the thread owning the player. On region-threaded servers (Folia), entities owned
+	 * by another region are skipped: they will be evaluated again once the player tracks them again.
+	 *
+	 * @param viewer player whose rule results must be computed again
+	 * @throws ReflectiveOperationException
+	 */
+	public void refreshGlowingRules(@NotNull Player viewer) throws ReflectiveOperationException {
+		ensureEnabled();
+		PlayerData playerData = glowing.get(viewer);
+		if (playerData == null || playerData.ruleCandidates.isEmpty())
+			return;
+		Packets.batch(() -> {
+			for (RuleMatch match : playerData.ruleCandidates.values()) {
+				Entity entity = Bukkit.getEntity(match.entityUUID);
+				if (entity == null || (Packets.isFolia && !Bukkit.isOwnedByCurrentRegion(entity)))
+					continue;
+				updateRule(playerData, entity, match, false);
+			}
+		});
+		detachHandlerIfIdle(playerData);
+	}
+
+	private @NotNull RuleMatch evaluateRules(@NotNull Entity entity) {
+		List<GlowingRule> matchingRules = null;
+		for (GlowingRule rule : rules) {
+			if (rule.entityPredicate.test(entity)) {
+				if (matchingRules == null)
+					matchingRules = new ArrayList<>(2);
+				matchingRules.add(rule);
+			}
+		}
+		if (matchingRules == null)
+			return RuleMatch.NONE;
+
+		String teamID = entity instanceof Player ? entity.getName() : entity.getUniqueId().toString();
+		byte flags;
+		try {
+			flags = Packets.getEntityFlags(entity);
+		} catch (ReflectiveOperationException ex) {
+			ex.printStackTrace();
+			flags = 0;
+		}
+		return new RuleMatch(matchingRules.toArray(GlowingRule[]::new), entity.getUniqueId(), teamID, flags);
+	}
+
+	private void applyRules(@NotNull Player viewer, @NotNull Entity entity) throws ReflectiveOperationException {
+		RuleMatch match = ruleMatches.get(entity.getEntityId());
+		if (match == null) {
+			match = evaluateRules(entity);
+			ruleMatches.put(entity.getEntityId(), match);
+		}
+		if (match.rules.length == 0)
+			return;
+
+		PlayerData playerData = getPlayerData(viewer);
+		// kept while the player tracks the entity, so that the viewer predicates can be tested again
+		playerData.ruleCandidates.put(entity.getEntityId(), match);
+		updateRule(playerData, entity, match, true);
+	}
+
+	/**
+	 * Tests the viewer predicates of the rules matching an entity, and sends the resulting glowing state if
+	 * it has changed or if the entity is being spawned for the player.
+	 */
+	private void updateRule(@NotNull PlayerData playerData, @NotNull Entity entity, @NotNull RuleMatch match,
+			boolean spawning) throws ReflectiveOperationException {
+		int entityID = entity.getEntityId();
+		GlowingRule rule = match.findRule(playerData.player, entity);
+		GlowingRule previous =
+				rule == null ? playerData.ruleGlowing.remove(entityID) : playerData.ruleGlowing.put(entityID, rule);
+		if (rule == previous && (!spawning || rule == null))
+			return; // nothing changed
+		if (rule != null)
+			attachHandler(playerData); // the handler must keep the flags of the entity up to date
+
+		if (playerData.glowingDatas.containsKey(entityID))
+			return; // explicit glowing has precedence
+
+		ChatColor previousColor = previous == null ? null : previous.color;
+		ChatColor color = rule == null ? null : rule.color;
+		if (previousColor != null && previousColor != color)
+			Packets.removeTeamEntry(playerData.player, match.teamID, previousColor);
+		if (color != null && (color != previousColor || spawning))
+			Packets.setTeamColor(playerData, match.teamID, color);
+
+		if (!spawning) {
+			Packets.setMetadata(playerData.player, entityID, Packets.computeFlags(match.otherFlags, rule != null), true);
+			return;
+		}
+		// the spawn packets are sent by the server right after this event: we send the flags once they are gone
+		runLater(playerData.player, () -> {
+			try {
+				Packets.setMetadata(playerData.player, entityID, Packets.computeFlags(match.otherFlags, true), true);
+			} catch (ReflectiveOperationException ex) {
+				ex.printStackTrace();
+			}
+		}, 1L);
+	}
+
+	/**
+	 * Finds the rule match to apply for this entity, if the entity glows for the viewer because of a rule.
+	 * <p>
+	 * This only reads cached results and can therefore be called from the Netty threads.
+	 */
+	private @Nullable RuleMatch getRuleMatch(@NotNull PlayerData playerData, int entityID) {
+		if (playerData.ruleGlowing.isEmpty() || !playerData.ruleGlowing.containsKey(entityID))
+			return null;
+		return playerData.ruleCandidates.get(entityID);
+	}
+
+	private class TrackingListener implements Listener {
+
+		@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+		public void onTrack(PlayerTrackEntityEvent event) {
+			try {
+				if (!retained.isEmpty())
+					restoreRetained(event.getPlayer(), event.getEntity());
+				PlayerData playerData = glowing.get(event.getPlayer());
+				GlowingData glowingData = playerData == null ? null : getTrackedData(playerData, event.getEntity());
+				if (playerData != null)
+					playerData.forgetSentFlags(event.getEntity().getEntityId(), glowingData);
+				if (glowingData != null) {
+					glowingData.tracked = true;
+					// we are on the thread owning the entity, so we can fetch its real flags
+					glowingData.otherFlags = Packets.getEntityFlags(event.getEntity());
+					glowingData.location = event.getEntity().getLocation();
+					// the spawn packets are sent by the server right after this event,
+					// so we send the glowing state once they are gone
+					runLater(event.getPlayer(), () -> {
+						try {
+							Packets.updateGlowingState(glowingData);
+						} catch (ReflectiveOperationException ex) {
+							ex.printStackTrace();
+						}
+					}, 1L);
+				} else if (!rules.isEmpty()) {
+					applyRules(event.getPlayer(), event.getEntity());
+				}
+			} catch (ReflectiveOperationException ex) {
+				ex.printStackTrace();
+			}
+		}
+
+		private @Nullable GlowingData getTrackedData(@NotNull PlayerData playerData, @NotNull Entity entity)
+				throws ReflectiveOperationException {
+			GlowingData glowingData = playerData.glowingDatas.get(entity.getEntityId());
+			if (glowingData == null && !playerData.suspended.isEmpty()) {
+				// the entity glowed for the player in a world they had left, and has come along with them
+				glowingData = resumeSuspended(playerData, entity.getEntityId(), entity.getWorld().getUID());
+			}
+			return glowingData;
+		}
+
+		@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+		public void onUntrack(PlayerUntrackEntityEvent event) {
+			PlayerData playerData = glowing.get(event.getPlayer());
+			if (playerData != null) {
+				int entityID = event.getEntity().getEntityId();
+				GlowingData glowingData = playerData.glowingDatas.get(entityID);
+				playerData.forgetSentFlags(entityID, glowingData);
+				if (glowingData != null)
+					glowingData.tracked = false;
+				if (!playerData.ruleCandidates.isEmpty()) {
+					playerData.ruleCandidates.remove(entityID);
+					if (playerData.ruleGlowing.remove(entityID) != null)
+						detachHandlerIfIdle(playerData);
+				}
+			}
+		}
+
+		@EventHandler
+		public void onRemove(EntityRemoveFromWorldEvent event) {
+			if (!ruleMatches.isEmpty())
+				ruleMatches.remove(event.getEntity().getEntityId());
+		}
+
+	}
+
+	/**
+	 * A rule registered with {@link GlowingEntities#addGlowingRule(Predicate, Predicate, ChatColor)}.
+	 */
+	public static final class GlowingRule {
+
+		private final @NotNull Predicate<Entity> entityPredicate;
+		private final @NotNull BiPredicate<Player, Entity> viewerPredicate;
+		private final @Nullable ChatColor color;
+		private volatile boolean removed = false;
+
+		private GlowingRule(@NotNull Predicate<Entity> entityPredicate,
+				@NotNull BiPredicate<Player, Entity> viewerPredicate, @Nullable ChatColor color) {
+			this.entityPredicate = entityPredicate;
+			this.viewerPredicate = viewerPredicate;
+			this.color = color;
+		}
+
+		public @NotNull Predicate<Entity> getEntityPredicate() {
+			return entityPredicate;
+		}
+
+		public @NotNull BiPredicate<Player, Entity> getViewerPredicate() {
+			return viewerPredicate;
+		}
+
+		public @Nullable ChatColor getColor() {
+			return color;
+		}
+
+	}
+
+	private static class RuleMatch {
+
+		static final RuleMatch NONE = new RuleMatch(new GlowingRule[0], null, null, (byte) 0);
+
+		final GlowingRule[] rules; // rules whose entity predicate matches the entity
+		final UUID entityUUID;
+		final String teamID;
+		volatile byte otherFlags; // shared by all viewers, as those are the flags sent by the server
+
+		RuleMatch(GlowingRule[] rules, UUID entityUUID, String teamID, byte otherFlags) {
+			this.rules = rules;
+			this.entityUUID = entityUUID;
+			this.teamID = teamID;
+			this.otherFlags = otherFlags;
+		}
+
+		@Nullable
+		GlowingRule findRule(@NotNull Player viewer, @NotNull Entity entity) {
+			for (GlowingRule rule : rules) {
+				if (!rule.removed && rule.viewerPredicate.test(viewer, entity))
+					return rule;
+			}
+			return null;
+		}
+
+	}
 
-		Packets.removeGlowing(glowingData);
+	private record RetainedState(@NotNull List<RetainedGlowing> glowings, long expiration) {}
 
-		if (glowingData.color != null)
-			Packets.removeGlowingColor(glowingData);
+	private record RetainedGlowing(int entityID, @Nullable UUID entityUUID, @Nullable UUID world,
+			@NotNull String teamID, @Nullable ChatColor color, byte otherFlags, double priority) {
+
+		static @NotNull List<RetainedGlowing> of(@NotNull PlayerData playerData) {
+			List<GlowingData> glowingDatas = new ArrayList<>(playerData.glowingDatas.values());
+			playerData.suspended.values().forEach(partition -> glowingDatas.addAll(partition.values()));
+
+			List<RetainedGlowing> glowings = new ArrayList<>(glowingDatas.size());
+			for (GlowingData glowingData : glowingDatas) {
+				glowings.add(new RetainedGlowing(glowingData.entityID,
+						glowingData.entityUUID, glowingData.world,
+						glowingData.teamID, glowingData.color, glowingData.otherFlags, glowingData.priority));
+			}
+			return glowings;
+		}
+
+		void write(@NotNull DataOutputStream out) throws IOException {
+			out.writeInt(entityID);
+			writeUUID(out, entityUUID);
+			writeUUID(out, world);
+			out.writeUTF(teamID);
+			out.writeChar(color == null ? 0 : color.getChar());
+			out.writeByte(otherFlags);
+			out.writeDouble(priority);
+		}
+
+		static @NotNull RetainedGlowing read(@NotNull DataInputStream in, byte version) throws IOException {
+			int entityID = in.readInt();
+			UUID entityUUID = readUUID(in);
+			UUID world = version >= 2 ? readUUID(in) : null; // version 1 did not have the world
+			String teamID = in.readUTF();
+			char colorChar = in.readChar();
+			return new RetainedGlowing(entityID, entityUUID, world, teamID,
+					colorChar == 0 ? null : ChatColor.getByChar(colorChar), in.readByte(), in.readDouble());
+		}
+
+		private static void writeUUID(@NotNull DataOutputStream out, @Nullable UUID uuid) throws IOException {
+			out.writeBoolean(uuid != null);
+			if (uuid != null) {
+				out.writeLong(uuid.getMostSignificantBits());
+				out.writeLong(uuid.getLeastSignificantBits());
+			}
+		}
+
+		private static @Nullable UUID readUUID(@NotNull DataInputStream in) throws IOException {
+			return in.readBoolean() ? new UUID(in.readLong(), in.readLong()) : null;
+		}
 
-		/*
-		 * if (playerData.glowingDatas.isEmpty()) { //NOSONAR // if the player do not have any other entity
-		 * glowing, // we can safely remove all of its data to free some memory
-		 * Packets.removePacketsHandler(playerData); glowing.remove(receiver); }
-		 */
-		// actually no, we should not remove the player datas
-		// as it stores which teams did it receive.
-		// if we do not save this information, team would be created
-		// twice for the player, and BungeeCord does not like that
 	}
 
 	private static class PlayerData {
@@ -261,13 +1478,76 @@ public class GlowingEntities implements Listener {
 		final GlowingEntities instance;
 		final Player player;
 		final Map<Integer, GlowingData> glowingDatas;
+		final Map<Integer, GlowingData> pendingUpdates;
+		final Map<Integer, RuleMatch> ruleCandidates; // tracked entities matching the entity predicate of rules
+		final Map<Integer, GlowingRule> ruleGlowing; // tracked entities glowing because of a rule
+		final Map<Integer, Byte> ruleSentFlags; // flags last delivered for entities glowing because of rules
+		final Map<UUID, Map<Integer, GlowingData>> suspended; // glowing datas of worlds the player has left
 		ChannelHandler packetsHandler;
+		Packets.FlagsPatcher flagsPatcher;
+		boolean flagsPatcherUnavailable; // the pipeline of the player has no encoder to patch
+		Channel channel;
 		EnumSet<ChatColor> sentColors;
+		Location lastRankLocation;
 
 		PlayerData(GlowingEntities instance, Player player) {
 			this.instance = instance;
 			this.player = player;
-			this.glowingDatas = new HashMap<>();
+			this.glowingDatas = new ConcurrentHashMap<>();
+			this.pendingUpdates = new ConcurrentHashMap<>();
+			this.ruleCandidates = new ConcurrentHashMap<>();
+			this.ruleGlowing = new ConcurrentHashMap<>();
+			this.ruleSentFlags = new ConcurrentHashMap<>();
+			this.suspended = new ConcurrentHashMap<>();
+		}
+
+		boolean hasGlowing() {
+			return !glowingDatas.isEmpty() || !suspended.isEmpty();
+		}
+
+		void releaseTeamEntries() {
+			glowingDatas.values().forEach(GlowingData::releaseTeamEntry);
+			suspended.values().forEach(partition -> partition.values().forEach(GlowingData::releaseTeamEntry));
+		}
+
+		@Nullable
+		GlowingData removeSuspended(int entityID) {
+			for (Iterator<Map<Integer, GlowingData>> iterator = suspended.values().iterator(); iterator.hasNext();) {
+				Map<Integer, GlowingData> partition = iterator.next();
+				GlowingData glowingData = partition.remove(entityID);
+				if (glowingData != null) {
+					if (partition.isEmpty())
+						iterator.remove();
+					return glowingData;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Records the flags which will be delivered to the player for an entity. Only used with the tracking
+		 * engine, as it is the only way to know when the client forgets about an entity. For this reason, the
+		 * flags of a glowing entity are only recorded once the player has started tracking it: fake entities
+		 * spawned by packets never fire tracking events, and may receive metadata before existing.
+		 *
+		 * @return <code>true</code> if the player has already received those exact flags
+		 */
+		boolean recordSentFlags(int entityID, @Nullable GlowingData glowingData, byte flags) {
+			if (glowingData != null) {
+				if (!glowingData.tracked)
+					return false;
+				int previous = glowingData.sentFlags;
+				glowingData.sentFlags = flags & 0xFF;
+				return previous == (flags & 0xFF);
+			}
+			Byte previous = ruleSentFlags.put(entityID, flags);
+			return previous != null && previous == flags;
+		}
+
+		void forgetSentFlags(int entityID, @Nullable GlowingData glowingData) {
+			if (glowingData != null)
+				glowingData.sentFlags = -1;
+			ruleSentFlags.remove(entityID);
 		}
 
 	}
@@ -279,28 +1559,110 @@ public class GlowingEntities implements Listener {
 		final PlayerData player;
 		final int entityID;
 		final String teamID;
-		ChatColor color;
-		byte otherFlags;
-		boolean enabled;
+		volatile Packets.TeamEntry teamEntry; // null when released, or if the entries are full
+		volatile ChatColor color;
+		volatile byte otherFlags;
+		volatile boolean enabled;
+		volatile int sentFlags = -1; // unsigned flags, -1 when unknown, see PlayerData#recordSentFlags
+		volatile boolean tracked; // true between the track and untrack events of the entity
+		// the Bukkit entity is not kept, so that dead entities and their worlds can be garbage collected
+		UUID entityUUID;
+		volatile Location location; // last known location of the entity, read from its owning thread
+		// world of the entities glowing from their ID, null for the ones glowing from their Bukkit instance
+		// as they keep their ID when they change world
+		volatile UUID world;
+		double priority = Double.NaN;
 
 		GlowingData(PlayerData player, int entityID, String teamID, ChatColor color, byte otherFlags) {
 			this.player = player;
 			this.entityID = entityID;
-			this.teamID = teamID;
+			this.teamEntry = Packets.acquireTeamEntry(teamID);
+			this.teamID = teamEntry == null ? teamID : teamEntry.teamID; // the string is shared by all viewers
 			this.color = color;
 			this.otherFlags = otherFlags;
 			this.enabled = true;
 		}
 
+		void releaseTeamEntry() {
+			Packets.TeamEntry entry = teamEntry;
+			if (entry != null) {
+				teamEntry = null;
+				Packets.releaseTeamEntry(entry);
+			}
+		}
+
+		void setEntity(@NotNull Entity entity) {
+			entityUUID = entity.getUniqueId();
+			location = entity.getLocation();
+		}
+
+		double getPriority(Location viewerLocation) {
+			if (!Double.isNaN(priority))
+				return priority;
+			if (entityUUID == null)
+				return Double.POSITIVE_INFINITY;
+			if (!Packets.isFolia) {
+				// everything runs on the main thread: we can fetch the current location of the entity.
+				// On region-threaded servers, the entity may be owned by another region, so we rely on the
+				// location known at the last call or tracking event instead
+				Entity entity = Bukkit.getEntity(entityUUID);
+				if (entity != null)
+					location = entity.getLocation();
+			}
+			Location entityLocation = location;
+			if (entityLocation == null || !Objects.equals(entityLocation.getWorld(), viewerLocation.getWorld()))
+				return Double.POSITIVE_INFINITY;
+			return entityLocation.distanceSquared(viewerLocation);
+		}
+
+	}
+
+	/**
+	 * A change of the glowing state of an entity for a player.
+	 *
+	 * @param viewer UUID of the player seeing the entity
+	 * @param entityID ID of the entity
+	 * @param color new color of the entity, <code>null</code> for the default team color or if it does not
+	 *        glow anymore
+	 * @param glowing <code>true</code> if the entity starts glowing or changes color, <code>false</code> if
+	 *        it stops glowing
+	 * @see GlowingEntities#changes()
+	 */
+	public record GlowingChange(@NotNull UUID viewer, int entityID, @Nullable ChatColor color, boolean glowing) {}
+
+	/**
+	 * What happens to the glowing entities of a world a player leaves.
+	 */
+	public enum WorldLeavePolicy {
+		/**
+		 * The glowing entities are kept aside and glow again when the player comes back in the world.
+		 */
+		SUSPEND,
+		/**
+		 * The glowing entities are forgotten.
+		 */
+		EVICT;
 	}
 
 	protected static class Packets {
 
 		private static final byte GLOWING_FLAG = 1 << 6;
 
-		private static Cache<Object, Object> packets =
+		// packets sent by the util, associated with the flags they carry
+		private static final ThreadLocal<Map<Player, List<Object>>> batches = new ThreadLocal<>();
+
+		private static Cache<Object, Byte> packets =
 				CacheBuilder.newBuilder().expireAfterWrite(5, TimeUnit.SECONDS).build();
-		private static Object dummy = new Object();
+
+		// team entries of the entities glowing for at least one player
+		private static final Map<String, TeamEntry> teamEntries = new ConcurrentHashMap<>();
+		private static final int MAX_TEAM_ENTRIES = 1 << 16;
+
+		// metadata packets rewritten from a broadcasted packet, shared by all viewers getting the same result
+		private static final Cache<Object, Map<Integer, Object>> rewrittenPackets =
+				CacheBuilder.newBuilder().weakKeys().expireAfterWrite(1, TimeUnit.SECONDS).build();
+		private static final int REWRITE_REMOVE_FLAGS = 1 << 8;
+		private static final int REWRITE_ADD_FLAGS = 1 << 9;
 
 		private static Logger logger;
 		private static String cpack;
@@ -310,6 +1672,9 @@ public class GlowingEntities implements Listener {
 		private static boolean hasInitialized = false;
 		private static Throwable initializationError = null;
 
+		static final boolean hasTrackingEvents = hasClass("io.papermc.paper.event.player.PlayerTrackEntityEvent");
+		static final boolean isFolia = hasClass("io.papermc.paper.threadedregions.RegionizedServer");
+
 		private static Method getHandle;
 		private static Method getDataWatcher;
 
@@ -330,6 +1695,7 @@ public class GlowingEntities implements Listener {
 		// Networking
 		private static Field playerConnection;
 		private static Method sendPacket;
+		private static Field pendingActionsField;
 		private static Field networkManager;
 		private static Field channelField;
 		private static ClassAccessor packetBundle;
@@ -359,6 +1725,12 @@ public class GlowingEntities implements Listener {
 		private static Constructor<?> packetRemove;
 		private static Object vec3dZero;
 
+		// Features loaded on first use
+		private static ReflectionAccessor reflection;
+		private static final Feature BUNDLES = new Feature("bundles", Packets::loadBundlesReflection);
+		private static final Feature TEAMS = new Feature("teams", Packets::loadTeamsReflection);
+		protected static final Feature ENTITIES = new Feature("fake entities", Packets::loadEntitiesReflection);
+
 		protected static void ensureInitialized() {
 			if (!hasInitialized)
 				initialize();
@@ -371,6 +1743,9 @@ public class GlowingEntities implements Listener {
 
 		private static void initialize() {
 			hasInitialized = true;
+			GlowingEvents.InitializePhase phaseEvent = new GlowingEvents.InitializePhase();
+			String phase = "mappings";
+			phaseEvent.begin();
 			try {
 				logger = new Logger("GlowingEntities", null) {
 					@Override
@@ -421,10 +1796,18 @@ public class GlowingEntities implements Listener {
 					reflection = new MappedReflectionAccessor(mappings);
 				}
 
-				loadReflection(reflection, version);
+				phaseEvent.commit(phase, true);
+
+				phaseEvent = new GlowingEvents.InitializePhase();
+				phase = "core";
+				phaseEvent.begin();
+				loadCoreReflection(reflection, version);
+				Packets.reflection = reflection;
+				phaseEvent.commit(phase, true);
 
 				isEnabled = true;
 			} catch (Exception ex) {
+				phaseEvent.commit(phase, false);
 				initializationError = ex;
 
 				String errorMsg =
@@ -439,19 +1822,24 @@ public class GlowingEntities implements Listener {
 			}
 		}
 
+		/**
+		 * Loads all the reflection needed by the util. This is used by the mappings generator, which must see
+		 * every class and member accessed; at runtime, only the core part is loaded eagerly and the other
+		 * features are loaded on first use.
+		 */
 		protected static void loadReflection(@NotNull ReflectionAccessor reflection, @NotNull Version version)
 				throws ReflectiveOperationException {
+			loadCoreReflection(reflection, version);
+			loadBundlesReflection(reflection, version);
+			loadTeamsReflection(reflection, version);
+			loadEntitiesReflection(reflection, version);
+		}
+
+		private static void loadCoreReflection(@NotNull ReflectionAccessor reflection, @NotNull Version version)
+				throws ReflectiveOperationException {
 			/* Global variables */
 
 			var entityClass = getNMSClass(reflection, "world.entity", "Entity");
-			var entityTypesClass = getNMSClass(reflection, "world.entity", "EntityType");
-
-			var worldInstance = version.isAfter(1, 21, 3) && cpack != null
-					? getCraftClass("", "CraftWorld").getDeclaredMethod("getHandle").invoke(Bukkit.getWorlds().get(0))
-					: null;
-			Object markerEntity = getNMSClass(reflection, "world.entity", "Marker")
-					.getConstructor(entityTypesClass, getNMSClass(reflection, "world.level", "Level"))
-					.newInstance(entityTypesClass.getField("MARKER").get(null), worldInstance);
 
 			getHandle = cpack == null ? null : getCraftClass("entity", "CraftEntity").getDeclaredMethod("getHandle");
 			getDataWatcher = entityClass.getMethodInstance("getEntityData");
@@ -460,19 +1848,13 @@ public class GlowingEntities implements Listener {
 
 			ClassAccessor dataWatcherClass = getNMSClass(reflection, "network.syncher", "SynchedEntityData");
 
-			if (version.isAfter(1, 20, 5)) {
-				ClassAccessor dataWatcherBuilderClass =
-						getNMSClass(reflection, "network.syncher", "SynchedEntityData$Builder");
-				var watcherBuilder = dataWatcherBuilderClass
-						.getConstructor(getNMSClass(reflection, "network.syncher", "SyncedDataHolder"))
-						.newInstance(markerEntity);
-				FieldAccessor watcherBuilderItems = dataWatcherBuilderClass.getField("itemsById");
-				watcherBuilderItems.set(watcherBuilder,
-						Array.newInstance(
-								getNMSClass(reflection, "network.syncher", "SynchedEntityData$DataItem").getClassInstance(),
-								0));
-				watcherDummy = dataWatcherBuilderClass.getMethod("build").invoke(watcherBuilder);
-			} else {
+			if (version.isBefore(1, 19, 3)) {
+				// the dummy data watcher is only needed to create metadata packets on versions
+				// where the packet cannot be created from a list of values
+				var entityTypesClass = getNMSClass(reflection, "world.entity", "EntityType");
+				Object markerEntity = getNMSClass(reflection, "world.entity", "Marker")
+						.getConstructor(entityTypesClass, getNMSClass(reflection, "world.level", "Level"))
+						.newInstance(entityTypesClass.getField("MARKER").get(null), null);
 				watcherDummy = dataWatcherClass.getConstructor(entityClass).newInstance(markerEntity);
 			}
 
@@ -508,12 +1890,10 @@ public class GlowingEntities implements Listener {
 			sendPacket =
 					packetListenerClass.getMethodInstance("send", getNMSClass(reflection, "network.protocol", "Packet"));
 			networkManager = packetListenerClass.getFieldInstance("connection");
-			channelField = getNMSClass(reflection, "network", "Connection").getFieldInstance("channel");
-
-			if (version.isAfter(1, 19, 4)) {
-				packetBundle = getNMSClass(reflection, "network.protocol", "BundlePacket");
-				packetBundlePackets = packetBundle.getMethodInstance("subPackets");
-			}
+			ClassAccessor connectionClass = getNMSClass(reflection, "network", "Connection");
+			channelField = connectionClass.getFieldInstance("channel");
+			// packets held back by the connection, which must not be overtaken by ours
+			pendingActionsField = connectionClass.getFieldInstance(version.isAfter(1, 20, 2) ? "pendingActions" : "queue");
 
 			/* Metadata */
 
@@ -526,9 +1906,18 @@ public class GlowingEntities implements Listener {
 				packetMetadataConstructor =
 						packetMetadata.getConstructorInstance(int.class, dataWatcherClass, boolean.class);
 			}
+		}
 
-			/* Teams */
+		private static void loadBundlesReflection(@NotNull ReflectionAccessor reflection, @NotNull Version version)
+				throws ReflectiveOperationException {
+			if (version.isAfter(1, 19, 4)) {
+				packetBundle = getNMSClass(reflection, "network.protocol", "BundlePacket");
+				packetBundlePackets = packetBundle.getMethodInstance("subPackets");
+			}
+		}
 
+		private static void loadTeamsReflection(@NotNull ReflectionAccessor reflection, @NotNull Version version)
+				throws ReflectiveOperationException {
 			ClassAccessor scoreboardClass = getNMSClass(reflection, "world.scores", "Scoreboard");
 			ClassAccessor teamClass = getNMSClass(reflection, "world.scores", "PlayerTeam");
 			ClassAccessor pushClass = getNMSClass(reflection, "world.scores", "Team$CollisionRule");
@@ -545,9 +1934,11 @@ public class GlowingEntities implements Listener {
 			setTeamPush = teamClass.getMethodInstance("setCollisionRule", pushClass);
 			setTeamColor = teamClass.getMethodInstance("setColor", chatFormatClass);
 			getColorConstant = chatFormatClass.getMethodInstance("getByCode", char.class);
+		}
 
-			/* Entities */
-
+		private static void loadEntitiesReflection(@NotNull ReflectionAccessor reflection, @NotNull Version version)
+				throws ReflectiveOperationException {
+			var entityTypesClass = getNMSClass(reflection, "world.entity", "EntityType");
 			shulkerEntityType = entityTypesClass.getField("SHULKER").get(null);
 
 			ClassAccessor vec3dClass = getNMSClass(reflection, "world.phys", "Vec3");
@@ -574,15 +1965,86 @@ public class GlowingEntities implements Listener {
 							.getConstructorInstance(int[].class);
 		}
 
+		/**
+		 * Runs a glow operation and writes all the packets it sends at once: each viewer's connection is
+		 * flushed a single time. Batches started during a batch are merged into it.
+		 */
+		public static void batch(PacketsTask task) throws ReflectiveOperationException {
+			if (batches.get() != null) {
+				task.run();
+				return;
+			}
+			Map<Player, List<Object>> batch = new LinkedHashMap<>();
+			batches.set(batch);
+			try {
+				task.run();
+			} finally {
+				batches.remove();
+				for (var entry : batch.entrySet())
+					writePackets(entry.getKey(), entry.getValue());
+			}
+		}
+
 		public static void sendPackets(Player p, Object... packets) throws ReflectiveOperationException {
-			Object connection = playerConnection.get(getHandle.invoke(p));
+			Map<Player, List<Object>> batch = batches.get();
+			if (batch != null) {
+				List<Object> playerPackets = batch.computeIfAbsent(p, key -> new ArrayList<>());
+				for (Object packet : packets) {
+					if (packet != null)
+						playerPackets.add(packet);
+				}
+				return;
+			}
+			writePackets(p, Arrays.asList(packets));
+		}
+
+		private static void writePackets(Player p, List<Object> packets) throws ReflectiveOperationException {
+			Object listener = playerConnection.get(getHandle.invoke(p));
+			Object connection = networkManager.get(listener);
+			Channel channel = (Channel) channelField.get(connection);
+			if (channel == null) {
+				// fake players may not have a real connection: we let it handle the packets
+				sendThroughConnection(listener, packets);
+				return;
+			}
+			// the packets are written without flush, then the connection is flushed once from its event loop
+			if (channel.eventLoop().inEventLoop())
+				writeAndFlush(channel, listener, connection, packets);
+			else
+				channel.eventLoop().execute(() -> writeAndFlush(channel, listener, connection, packets));
+		}
+
+		private static void writeAndFlush(Channel channel, Object listener, Object connection, List<Object> packets) {
+			try {
+				if (hasPendingActions(connection)) {
+					// the connection holds back packets of the server (for instance chunks not ready yet): ours
+					// must not overtake them, so they go through the same queue
+					sendThroughConnection(listener, packets);
+					return;
+				}
+			} catch (ReflectiveOperationException ex) {
+				ex.printStackTrace();
+				return;
+			}
 			for (Object packet : packets) {
-				if (packet == null)
-					continue;
-				sendPacket.invoke(connection, packet);
+				if (packet != null)
+					channel.write(packet, channel.voidPromise());
+			}
+			channel.flush();
+		}
+
+		private static void sendThroughConnection(Object listener, List<Object> packets)
+				throws ReflectiveOperationException {
+			for (Object packet : packets) {
+				if (packet != null)
+					sendPacket.invoke(listener, packet);
 			}
 		}
 
+		private static boolean hasPendingActions(Object connection) throws ReflectiveOperationException {
+			return !((Queue<?>) pendingActionsField.get(connection)).isEmpty();
+		}
+
 		public static byte getEntityFlags(Entity entity) throws ReflectiveOperationException {
 			Object nmsEntity = getHandle.invoke(entity);
 			Object dataWatcher = getDataWatcher.invoke(nmsEntity);
@@ -590,17 +2052,17 @@ public class GlowingEntities implements Listener {
 		}
 
 		public static void createGlowing(GlowingData glowingData) throws ReflectiveOperationException {
-			setMetadata(glowingData.player.player, glowingData.entityID, computeFlags(glowingData), true);
+			sendGlowingState(glowingData);
 		}
 
 		private static byte computeFlags(GlowingData glowingData) {
-			byte newFlags = glowingData.otherFlags;
-			if (glowingData.enabled) {
-				newFlags |= GLOWING_FLAG;
-			} else {
-				newFlags &= ~GLOWING_FLAG;
-			}
-			return newFlags;
+			return computeFlags(glowingData.otherFlags, glowingData.enabled);
+		}
+
+		static byte computeFlags(byte otherFlags, boolean glowing) {
+			// when the entity does not glow for us, the flags of the server are left untouched so that a glowing
+			// effect given by another plugin or vanilla behavior stays visible
+			return glowing ? (byte) (otherFlags | GLOWING_FLAG) : otherFlags;
 		}
 
 		public static Object createFlagWatcherItem(byte newFlags) throws ReflectiveOperationException {
@@ -609,7 +2071,7 @@ public class GlowingEntities implements Listener {
 		}
 
 		public static void removeGlowing(GlowingData glowingData) throws ReflectiveOperationException {
-			setMetadata(glowingData.player.player, glowingData.entityID, glowingData.otherFlags, true);
+			sendGlowingState(glowingData);
 		}
 
 		public static void updateGlowingState(GlowingData glowingData) throws ReflectiveOperationException {
@@ -619,12 +2081,56 @@ public class GlowingEntities implements Listener {
 				removeGlowing(glowingData);
 		}
 
+		private static void sendGlowingState(GlowingData glowingData) throws ReflectiveOperationException {
+			PlayerData playerData = glowingData.player;
+			Channel channel = playerData.channel;
+			if (channel != null && !channel.isWritable()) {
+				// the connection of the viewer is saturated: we only remember the entity and the state
+				// will be computed and sent once the channel is writable again.
+				// This way, a lagging client cannot make its outbound buffer grow indefinitely.
+				playerData.pendingUpdates.put(glowingData.entityID, glowingData);
+				if (channel.isWritable()) // the channel may have drained in the meantime
+					channel.eventLoop().execute(() -> flushPendingUpdates(playerData));
+				return;
+			}
+			setMetadata(playerData.player, glowingData.entityID, computeFlags(glowingData), true);
+		}
+
+		private static void flushPendingUpdates(PlayerData playerData) {
+			for (Iterator<GlowingData> iterator = playerData.pendingUpdates.values().iterator(); iterator.hasNext();) {
+				if (!playerData.channel.isWritable())
+					return; // the remaining updates will be sent on the next writability change
+				GlowingData glowingData = iterator.next();
+				iterator.remove();
+				try {
+					setMetadata(playerData.player, glowingData.entityID, computeFlags(glowingData), true);
+				} catch (ReflectiveOperationException e) {
+					e.printStackTrace();
+				}
+			}
+			if (playerData.glowingDatas.isEmpty())
+				playerData.instance.detachHandlerIfIdle(playerData);
+		}
+
 		public static void setMetadata(Player player, int entityId, byte flags, boolean ignore)
 				throws ReflectiveOperationException {
+			sendPackets(player, createMetadata(entityId, flags, ignore));
+		}
+
+		public static Object createMetadata(int entityId, byte flags, boolean ignore)
+				throws ReflectiveOperationException {
 			List<Object> dataItems = new ArrayList<>(1);
 			dataItems.add(watcherItemConstructor != null ? watcherItemConstructor.newInstance(watcherObjectFlags, flags)
 					: watcherBCreator.invoke(null, watcherObjectFlags, flags));
 
+			Object packetMetadata = createMetadataPacket(entityId, dataItems);
+			if (ignore)
+				packets.put(packetMetadata, flags);
+			return packetMetadata;
+		}
+
+		private static Object createMetadataPacket(int entityId, List<Object> dataItems)
+				throws ReflectiveOperationException {
 			Object packetMetadata;
 			if (version.isBefore(1, 19, 3)) {
 				packetMetadata = packetMetadataConstructor.newInstance(entityId, watcherDummy, false);
@@ -632,44 +2138,178 @@ public class GlowingEntities implements Listener {
 			} else {
 				packetMetadata = packetMetadataConstructor.newInstance(entityId, dataItems);
 			}
-			if (ignore)
-				packets.put(packetMetadata, dummy);
-			sendPackets(player, packetMetadata);
+			return packetMetadata;
+		}
+
+		/**
+		 * Gets the packet replacing a broadcasted metadata packet for a viewer. The rewritten packets are
+		 * remembered for each original packet, so that all viewers with the same result share one instance.
+		 *
+		 * @param original packet broadcasted by the server
+		 * @param flagsIndex index of the flags item in the original packet, or -1
+		 * @param rewrite new flags, optionally combined with {@link #REWRITE_ADD_FLAGS}, or
+		 *        {@link #REWRITE_REMOVE_FLAGS}
+		 */
+		private static Object getRewrittenMetadata(Object original, int entityId, List<Object> items, int flagsIndex,
+				int rewrite) throws ReflectiveOperationException {
+			Map<Integer, Object> rewritten =
+					rewrittenPackets.asMap().computeIfAbsent(original, key -> new ConcurrentHashMap<>());
+			Object packet = rewritten.get(rewrite);
+			if (packet == null) {
+				// we cannot simply edit the items as they may be backed in the datawatcher, so we make a copy
+				List<Object> newItems = new ArrayList<>(items);
+				if (rewrite == REWRITE_REMOVE_FLAGS)
+					newItems.remove(flagsIndex);
+				else if ((rewrite & REWRITE_ADD_FLAGS) != 0)
+					newItems.add(createFlagWatcherItem((byte) rewrite));
+				else
+					newItems.set(flagsIndex, createFlagWatcherItem((byte) rewrite));
+
+				packet = createMetadataPacket(entityId, newItems);
+				Object previous = rewritten.putIfAbsent(rewrite, packet);
+				if (previous != null)
+					packet = previous; // another viewer has built it at the same time
+			}
+			return packet;
 		}
 
 		public static void setGlowingColor(GlowingData glowingData) throws ReflectiveOperationException {
+			setTeamColor(glowingData.player, glowingData.teamID, glowingData.color);
+		}
+
+		public static void setTeamColor(PlayerData playerData, String teamID, ChatColor color)
+				throws ReflectiveOperationException {
 			boolean sendCreation = false;
-			if (glowingData.player.sentColors == null) {
-				glowingData.player.sentColors = EnumSet.of(glowingData.color);
-				sendCreation = true;
-			} else if (glowingData.player.sentColors.add(glowingData.color)) {
-				sendCreation = true;
+			synchronized (playerData) {
+				if (playerData.sentColors == null) {
+					playerData.sentColors = EnumSet.of(color);
+					sendCreation = true;
+				} else if (playerData.sentColors.add(color)) {
+					sendCreation = true;
+				}
 			}
 
-			TeamData teamData = teams.get(glowingData.color);
-			if (teamData == null) {
-				teamData = new TeamData(glowingData.player.instance.uid, glowingData.color);
-				teams.put(glowingData.color, teamData);
-			}
+			TeamData teamData = getTeamData(playerData.instance.uid, color);
 
-			Object entityAddPacket = teamData.getEntityAddPacket(glowingData.teamID);
+			Object entityAddPacket = teamData.getEntityAddPacket(teamID);
 			if (sendCreation) {
-				sendPackets(glowingData.player.player, teamData.creationPacket, entityAddPacket);
+				sendPackets(playerData.player, teamData.creationPacket, entityAddPacket);
 			} else {
-				sendPackets(glowingData.player.player, entityAddPacket);
+				sendPackets(playerData.player, entityAddPacket);
+			}
+		}
+
+		/**
+		 * Creates the packets needed to add many entries to the teams of their colors, with one packet per
+		 * team, preceded by the team creation if the player has not received it yet.
+		 */
+		public static List<Object> createTeamEntriesPackets(PlayerData playerData,
+				Map<ChatColor, List<String>> teamEntries) throws ReflectiveOperationException {
+			List<Object> teamPackets = new ArrayList<>();
+			for (var entry : teamEntries.entrySet()) {
+				boolean sendCreation;
+				synchronized (playerData) {
+					if (playerData.sentColors == null)
+						playerData.sentColors = EnumSet.noneOf(ChatColor.class);
+					sendCreation = playerData.sentColors.add(entry.getKey());
+				}
+
+				TeamData teamData = getTeamData(playerData.instance.uid, entry.getKey());
+				if (sendCreation)
+					teamPackets.add(teamData.creationPacket);
+				teamPackets.add(teamData.createEntitiesAddPacket(entry.getValue()));
+			}
+			return teamPackets;
+		}
+
+		/**
+		 * Sends the creation packets of all the teams already used by the util, so that the first glowing
+		 * calls for this player do not have to.
+		 */
+		public static void sendCreatedTeams(PlayerData playerData) throws ReflectiveOperationException {
+			List<Object> creationPackets = new ArrayList<>();
+			synchronized (Packets.class) {
+				synchronized (playerData) {
+					for (TeamData teamData : teams.values()) {
+						if (playerData.sentColors == null)
+							playerData.sentColors = EnumSet.noneOf(ChatColor.class);
+						if (playerData.sentColors.add(teamData.color))
+							creationPackets.add(teamData.creationPacket);
+					}
+				}
+			}
+			if (!creationPackets.isEmpty())
+				sendPackets(playerData.player, creationPackets.toArray());
+		}
+
+		private static synchronized TeamData getTeamData(int uid, ChatColor color) throws ReflectiveOperationException {
+			TEAMS.ensureLoaded();
+			TeamData teamData = teams.get(color);
+			if (teamData == null) {
+				teamData = new TeamData(uid, color);
+				teams.put(color, teamData);
 			}
+			return teamData;
+		}
+
+		/**
+		 * Gets the team entry of an entity, shared by all its glowing datas. If too many entities are glowing,
+		 * <code>null</code> is returned and the team packets of the entity are created each time.
+		 */
+		static @Nullable TeamEntry acquireTeamEntry(String teamID) {
+			return teamEntries.compute(teamID, (key, entry) -> {
+				if (entry == null) {
+					if (teamEntries.size() >= MAX_TEAM_ENTRIES)
+						return null;
+					entry = new TeamEntry(key);
+				}
+				entry.references++;
+				return entry;
+			});
+		}
+
+		static void releaseTeamEntry(TeamEntry teamEntry) {
+			// the entry, and the packets it holds, are dropped as soon as the entity does not glow anymore
+			teamEntries.computeIfPresent(teamEntry.teamID,
+					(key, entry) -> entry == teamEntry && --entry.references == 0 ? null : entry);
 		}
 
 		public static void removeGlowingColor(GlowingData glowingData) throws ReflectiveOperationException {
-			TeamData teamData = teams.get(glowingData.color);
+			removeTeamEntry(glowingData.player.player, glowingData.teamID, glowingData.color);
+		}
+
+		public static void removeTeamEntry(Player player, String teamID, ChatColor color)
+				throws ReflectiveOperationException {
+			TeamData teamData = teams.get(color);
 			if (teamData == null)
 				return; // must not happen; this means the color has not been set previously
 
-			sendPackets(glowingData.player.player, teamData.getEntityRemovePacket(glowingData.teamID));
+			sendPackets(player, teamData.getEntityRemovePacket(teamID));
+		}
+
+		/**
+		 * Removes many entries from the teams of their colors, with one packet per team.
+		 */
+		public static void removeTeamEntries(Player player, Map<ChatColor, ? extends Collection<String>> teamEntries)
+				throws ReflectiveOperationException {
+			List<Object> teamPackets = new ArrayList<>(teamEntries.size());
+			for (var entry : teamEntries.entrySet()) {
+				TeamData teamData = teams.get(entry.getKey());
+				if (teamData != null && !entry.getValue().isEmpty())
+					teamPackets.add(teamData.createEntitiesRemovePacket(entry.getValue()));
+			}
+			if (!teamPackets.isEmpty())
+				sendPackets(player, teamPackets.toArray());
 		}
 
 		public static void createEntity(Player player, int entityId, UUID entityUuid, Object entityType, Location location)
 				throws IllegalArgumentException, ReflectiveOperationException {
+			sendPackets(player, createEntityPacket(entityId, entityUuid, entityType, location));
+		}
+
+		public static Object createEntityPacket(int entityId, UUID entityUuid, Object entityType, Location location)
+				throws IllegalArgumentException, ReflectiveOperationException {
+			ENTITIES.ensureLoaded();
 			Object packet;
 			if (version.isAfter(1, 19, 0)) {
 				packet = packetAddEntity.newInstance(entityId, entityUuid, location.getX(), location.getY(),
@@ -678,10 +2318,15 @@ public class GlowingEntities implements Listener {
 				packet = packetAddEntity.newInstance(entityId, entityUuid, location.getX(), location.getY(),
 						location.getZ(), location.getPitch(), location.getYaw(), entityType, 0, vec3dZero);
 			}
-			sendPackets(player, packet);
+			return packet;
 		}
 
 		public static void removeEntities(Player player, int... entitiesId) throws ReflectiveOperationException {
+			sendPackets(player, createRemoveEntitiesPackets(entitiesId));
+		}
+
+		public static Object[] createRemoveEntitiesPackets(int... entitiesId) throws ReflectiveOperationException {
+			ENTITIES.ensureLoaded();
 			Object[] packets;
 			if (version.is(1, 17, 0)) {
 				packets = new Object[entitiesId.length];
@@ -691,29 +2336,47 @@ public class GlowingEntities implements Listener {
 			} else {
 				packets = new Object[] {packetRemove.newInstance(entitiesId)};
 			}
-
-			sendPackets(player, packets);
+			return packets;
 		}
 
 		private static Channel getChannel(Player player) throws ReflectiveOperationException {
 			return (Channel) channelField.get(networkManager.get(playerConnection.get(getHandle.invoke(player))));
 		}
 
-		public static void addPacketsHandler(PlayerData playerData) throws ReflectiveOperationException {
+		public static CompletableFuture<Void> addPacketsHandler(PlayerData playerData)
+				throws ReflectiveOperationException {
+			BUNDLES.tryLoad(); // if bundles cannot be loaded, the handler will simply not correct them
 			playerData.packetsHandler = new ChannelDuplexHandler() {
 				@Override
 				public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-					if (msg.getClass().equals(packetMetadata.getClassInstance()) && packets.asMap().remove(msg) == null) {
+					boolean isMetadata = msg.getClass().equals(packetMetadata.getClassInstance());
+					Byte ownFlags = isMetadata ? packets.asMap().remove(msg) : null;
+					if (ownFlags != null) {
+						// one of our packets: it goes through untouched, but the viewer will now have those flags
+						if (playerData.instance.trackingEngine) {
+							int entityID = packetMetadataEntity.getInt(msg);
+							GlowingData glowingData = playerData.glowingDatas.get(entityID);
+							if (glowingData != null || playerData.instance.getRuleMatch(playerData, entityID) != null)
+								playerData.recordSentFlags(entityID, glowingData, ownFlags);
+						}
+					} else if (isMetadata) {
 						int entityID = packetMetadataEntity.getInt(msg);
 						GlowingData glowingData = playerData.glowingDatas.get(entityID);
-						if (glowingData != null) {
+						RuleMatch ruleMatch =
+								glowingData == null ? playerData.instance.getRuleMatch(playerData, entityID) : null;
+						if (glowingData != null || ruleMatch != null) {
 
 							@SuppressWarnings("unchecked")
 							List<Object> items = (List<Object>) packetMetadataItems.get(msg);
 							if (items != null) {
+								GlowingEvents.MetadataRewrite rewriteEvent = new GlowingEvents.MetadataRewrite();
+								rewriteEvent.begin();
 
 								boolean containsFlags = false;
 								boolean edited = false;
+								int patchedFlagsIndex = -1;
+								byte patchedFlags = 0;
+								byte deliveredFlags = 0;
 								for (int i = 0; i < items.size(); i++) {
 									Object item = items.get(i);
 									Object watcherObject;
@@ -727,22 +2390,60 @@ public class GlowingEntities implements Listener {
 									if (watcherObject.equals(watcherObjectFlags)) {
 										containsFlags = true;
 										byte flags = (byte) watcherItemDataGet.invoke(item);
-										glowingData.otherFlags = flags;
-										byte newFlags = computeFlags(glowingData);
+										byte newFlags;
+										if (glowingData != null) {
+											glowingData.otherFlags = flags;
+											// this packet will carry the up-to-date state, no need to send the pending one
+											if (!playerData.pendingUpdates.isEmpty())
+												playerData.pendingUpdates.remove(entityID, glowingData);
+											newFlags = computeFlags(glowingData);
+										} else {
+											ruleMatch.otherFlags = flags;
+											newFlags = computeFlags(flags, true);
+										}
+										deliveredFlags = newFlags;
 										if (newFlags != flags) {
 											edited = true;
-											items = new ArrayList<>(items);
-											// we cannot simply edit the item as it may be backed in the datawatcher, so we
-											// make a copy of the list
-											items.set(i, createFlagWatcherItem(newFlags));
-											break;
-											// we can break right now as the "flags" datawatcher object may not be present
-											// twice in the same packet
+											patchedFlagsIndex = i;
+											patchedFlags = newFlags;
 										}
+										break;
+										// we can break right now as the "flags" datawatcher object may not be present
+										// twice in the same packet
+									}
+								}
+
+								boolean alreadySent = false;
+								if (containsFlags && playerData.instance.trackingEngine) {
+									// the server re-sends the flags each time it sends metadata of the entity, even
+									// if they did not change: we do not need to send them again
+									alreadySent = playerData.recordSentFlags(entityID, glowingData, deliveredFlags);
+									if (alreadySent && items.size() == 1) {
+										promise.trySuccess();
+										return; // nothing new for the viewer
+									}
+								}
+
+								if (edited && !alreadySent && patchedFlagsIndex == 0 && playerData.instance.byteBufPatching
+										&& !playerData.flagsPatcherUnavailable && getFlagsPatcher(ctx) != null) {
+									// the flags are the first item: we can let the packet go and change the byte
+									// directly in the buffer encoded for this viewer, without allocating anything
+									playerData.flagsPatcher.expect(entityID, patchedFlags);
+									super.write(ctx, msg, promise);
+									if (playerData.flagsPatcher.hasPatched()) {
+										rewriteEvent.commit(entityID, playerData.player, items.size(), true);
+										return;
 									}
+									// the encoded packet did not have the expected layout: the original packet has
+									// gone through, so we send the correct flags right after it
+									promise = ctx.voidPromise();
 								}
 
-								if (!edited && !containsFlags) {
+								int rewrite = 0;
+								if (patchedFlagsIndex != -1) // we only send the other items if the flags were sent
+									rewrite = alreadySent ? REWRITE_REMOVE_FLAGS : patchedFlags & 0xFF;
+
+								if (!edited && !containsFlags && glowingData != null && !glowingData.tracked) {
 									// if the packet does not contain any flag information, we are unsure if it is a packet
 									// simply containing informations about another object's data update OR if it is a packet
 									// containing all non-default informations of the entity. Such as packet can be sent when
@@ -752,11 +2453,13 @@ public class GlowingEntities implements Listener {
 									// Ideally, we should listen for an "entity add" packet to be sure we are in the case
 									// above, but honestly it's annoying because there are multiple types of "entity add"
 									// packets, so we do like this instead. Less performant, but not by far.
+									// Entities followed by the tracking engine, including the ones glowing because of rules,
+									// instead get their state once the player starts tracking them. Fake entities spawned
+									// by packets never fire tracking events, so they still need this.
 									byte flags = computeFlags(glowingData);
 									if (flags != 0) {
 										edited = true;
-										items = new ArrayList<>(items);
-										items.add(createFlagWatcherItem(flags));
+										rewrite = REWRITE_ADD_FLAGS | flags & 0xFF;
 									}
 								}
 
@@ -764,18 +2467,14 @@ public class GlowingEntities implements Listener {
 									// some of the metadata packets are broadcasted to all players near the target entity.
 									// hence, if we directly edit the packet, some users that were not intended to see the
 									// glowing color will be able to see it. We should send a new packet to the viewer only.
-
-									Object newMsg;
-									if (version.isBefore(1, 19, 3)) {
-										newMsg = packetMetadataConstructor.newInstance(entityID, watcherDummy, false);
-										packetMetadataItems.set(newMsg, items);
-									} else {
-										newMsg = packetMetadataConstructor.newInstance(entityID, items);
-									}
-									packets.put(newMsg, dummy);
-									sendPackets(playerData.player, newMsg);
-
-									return; // we cancel the send of this packet
+									// We write it from here so it does not go through the whole pipeline a second time,
+									// and so the original promise gets completed with the replacement packet.
+									// Viewers of the same broadcast with the same result share the new packet.
+									ctx.write(getRewrittenMetadata(msg, entityID, items, patchedFlagsIndex, rewrite),
+											promise);
+									rewriteEvent.commit(entityID, playerData.player, items.size(), false);
+
+									return; // we do not let the original packet go through
 								}
 							}
 						}
@@ -785,45 +2484,178 @@ public class GlowingEntities implements Listener {
 					super.write(ctx, msg, promise);
 				}
 
+				private FlagsPatcher getFlagsPatcher(ChannelHandlerContext ctx) {
+					if (playerData.flagsPatcher == null) {
+						FlagsPatcher patcher = new FlagsPatcher();
+						try {
+							ctx.pipeline().addBefore("encoder", null, patcher);
+						} catch (NoSuchElementException ex) {
+							// non-vanilla pipeline: the mode is not available for this player
+							playerData.flagsPatcherUnavailable = true;
+							logger.warning("Cannot find the packet encoder of " + playerData.player.getName()
+									+ ", encoded buffers patching has been disabled for this player.");
+							return null;
+						}
+						playerData.flagsPatcher = patcher;
+					}
+					return playerData.flagsPatcher;
+				}
+
+				@Override
+				public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+					if (ctx.channel().isWritable() && !playerData.pendingUpdates.isEmpty())
+						flushPendingUpdates(playerData);
+					super.channelWritabilityChanged(ctx);
+				}
+
 				@SuppressWarnings("rawtypes")
 				private void handlePacketBundle(Object bundle) throws ReflectiveOperationException {
+					GlowingEvents.BundleCorrection event = new GlowingEvents.BundleCorrection();
+					event.begin();
+					int scanned = 0;
 					Iterable subPackets = (Iterable) packetBundlePackets.invoke(bundle);
 					for (Iterator iterator = subPackets.iterator(); iterator.hasNext();) {
 						Object packet = iterator.next();
+						scanned++;
 
-						if (packet.getClass().equals(packetMetadata)) {
+						if (packet.getClass().equals(packetMetadata.getClassInstance())) {
 							int entityID = packetMetadataEntity.getInt(packet);
 							GlowingData glowingData = playerData.glowingDatas.get(entityID);
-							if (glowingData != null) {
-								// means the bundle packet contains metadata about an entity that must be glowing.
+							if (glowingData != null && !glowingData.tracked) {
+								// means the bundle packet contains metadata about an entity that must be glowing,
+								// and which is not followed by the tracking engine.
 								// editing a bundle packet is annoying, so we'll let it go to the player
 								// and then send a metadata packet containing the correct glowing flag.
 
-								Bukkit.getScheduler().runTaskLaterAsynchronously(playerData.instance.plugin, () -> {
+								playerData.instance.runLater(playerData.player, () -> {
 									try {
 										updateGlowingState(glowingData);
 									} catch (ReflectiveOperationException e) {
 										e.printStackTrace();
 									}
 								}, 1L);
+								event.commit(playerData.player, scanned, true);
 								return;
 							}
 						}
 					}
+					event.commit(playerData.player, scanned, false);
 				}
 
 			};
 
-			getChannel(playerData.player).pipeline().addBefore("packet_handler", null, playerData.packetsHandler);
+			if (playerData.channel == null)
+				playerData.channel = getChannel(playerData.player);
+			// packets sent afterwards from other threads are also queued on the event loop,
+			// so they will go through the handler
+			ChannelHandler handler = playerData.packetsHandler;
+			return runInEventLoop(playerData.channel,
+					() -> playerData.channel.pipeline().addBefore("packet_handler", null, handler));
+		}
+
+		public static CompletableFuture<Void> removePacketsHandler(PlayerData playerData) {
+			ChannelHandler handler = playerData.packetsHandler;
+			if (handler == null)
+				return CompletableFuture.completedFuture(null);
+			playerData.packetsHandler = null;
+			// tasks are run in order on the event loop: this one runs before the installation of any new handler
+			return runInEventLoop(playerData.channel, () -> {
+				playerData.channel.pipeline().remove(handler);
+				if (playerData.flagsPatcher != null) {
+					playerData.channel.pipeline().remove(playerData.flagsPatcher);
+					playerData.flagsPatcher = null;
+				}
+			});
+		}
+
+		private static CompletableFuture<Void> runInEventLoop(Channel channel, Runnable task) {
+			return CompletableFuture.runAsync(task, channel.eventLoop()).whenComplete((result, ex) -> {
+				if (ex != null && channel.isOpen())
+					logger.log(Level.SEVERE, "Failed to modify the pipeline of a player.", ex);
+			});
 		}
 
-		public static void removePacketsHandler(PlayerData playerData) throws ReflectiveOperationException {
-			if (playerData.packetsHandler != null) {
-				getChannel(playerData.player).pipeline().remove(playerData.packetsHandler);
+		/**
+		 * Sits right after the packet encoder and patches the flags byte of the next encoded entity data
+		 * packet, when told to do so by the packets handler.
+		 * <p>
+		 * Encoding is done synchronously in the event loop, so the next buffer written after
+		 * {@link #expect(int, byte)} is the encoded form of the packet the packets handler has let go through.
+		 * Entity data items are written in ascending index order, so the flags (index 0) are always the first
+		 * item: <code>[packet id][entity id][0][0 = byte serializer][flags]...</code>
+		 */
+		static final class FlagsPatcher extends ChannelOutboundHandlerAdapter {
+
+			private boolean expecting;
+			private boolean patched;
+			private int entityID;
+			private byte flags;
+
+			void expect(int entityID, byte flags) {
+				this.expecting = true;
+				this.patched = false;
+				this.entityID = entityID;
+				this.flags = flags;
+			}
+
+			boolean hasPatched() {
+				expecting = false;
+				return patched;
+			}
+
+			@Override
+			public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+				if (expecting && msg instanceof ByteBuf buf) {
+					expecting = false;
+					patched = patchFlags(buf);
+				}
+				super.write(ctx, msg, promise);
+			}
+
+			private boolean patchFlags(ByteBuf buf) {
+				int end = buf.writerIndex();
+				long packetId = readVarInt(buf, buf.readerIndex(), end);
+				if (packetId == -1)
+					return false;
+				long entity = readVarInt(buf, (int) (packetId >>> 32), end);
+				if (entity == -1 || (int) entity != entityID)
+					return false;
+				int index = (int) (entity >>> 32);
+				if (index + 3 > end || buf.getByte(index) != 0 || buf.getByte(index + 1) != 0)
+					return false; // the first item is not the flags byte
+				buf.setByte(index + 2, flags);
+				return true;
+			}
+
+			/**
+			 * @return the value in the lower 32 bits and the index after the var int in the upper 32 bits, or -1
+			 *         if the var int is malformed
+			 */
+			private static long readVarInt(ByteBuf buf, int index, int end) {
+				int value = 0;
+				for (int shift = 0; shift < 35; shift += 7) {
+					if (index >= end)
+						return -1;
+					byte b = buf.getByte(index++);
+					value |= (b & 0x7F) << shift;
+					if ((b & 0x80) == 0)
+						return ((long) index << 32) | (value & 0xFFFFFFFFL);
+				}
+				return -1;
 			}
+
 		}
 
 		/* Reflection utils */
+		private static boolean hasClass(String className) {
+			try {
+				Class.forName(className);
+				return true;
+			} catch (ClassNotFoundException ex) {
+				return false;
+			}
+		}
+
 		private static Class<?> getCraftClass(String craftPackage, String className) throws ClassNotFoundException {
 			return Class.forName(cpack + (craftPackage.isBlank() ? "" : craftPackage + ".") + className);
 		}
@@ -838,20 +2670,85 @@ public class GlowingEntities implements Listener {
 			return reflection.getClass("net.minecraft." + nmPackage + "." + className);
 		}
 
+		/**
+		 * A group of reflection members which is only resolved the first time it is needed.
+		 * <p>
+		 * If it fails to load, only the features relying on it are unavailable.
+		 */
+		protected static class Feature {
+
+			private final @NotNull String name;
+			private final @NotNull ReflectionLoader loader;
+			private volatile boolean loaded = false;
+			private Throwable error = null;
+
+			Feature(@NotNull String name, @NotNull ReflectionLoader loader) {
+				this.name = name;
+				this.loader = loader;
+			}
+
+			/**
+			 * Loads the feature if it has not been done yet.
+			 *
+			 * @throws IllegalStateException if the feature failed to load, now or on a previous attempt
+			 */
+			public void ensureLoaded() {
+				if (!tryLoad())
+					throw new IllegalStateException(
+							"The " + name + " feature of Glowing Entities failed to initialize.", error);
+			}
+
+			/**
+			 * Loads the feature if it has not been done yet.
+			 *
+			 * @return <code>true</code> if the feature is loaded, <code>false</code> if it failed to load
+			 */
+			public boolean tryLoad() {
+				if (loaded)
+					return true;
+				synchronized (this) {
+					if (loaded)
+						return true;
+					if (error != null)
+						return false;
+					GlowingEvents.InitializePhase event = new GlowingEvents.InitializePhase();
+					event.begin();
+					try {
+						loader.load(reflection, version);
+						loaded = true;
+					} catch (ReflectiveOperationException | RuntimeException ex) {
+						error = ex;
+						logger.log(Level.SEVERE, "Glowing Entities failed to load the " + name + " feature.", ex);
+					}
+					event.commit(name, loaded);
+					return loaded;
+				}
+			}
+
+		}
+
+		@FunctionalInterface
+		interface PacketsTask {
+			void run() throws ReflectiveOperationException;
+		}
+
+		@FunctionalInterface
+		private interface ReflectionLoader {
+			void load(@NotNull ReflectionAccessor reflection, @NotNull Version version)
+					throws ReflectiveOperationException;
+		}
+
 		private static class TeamData {
 
 			private final String id;
+			private final ChatColor color;
 			private final Object creationPacket;
 
-			private final Cache<String, Object> addPackets =
-					CacheBuilder.newBuilder().expireAfterAccess(3, TimeUnit.MINUTES).build();
-			private final Cache<String, Object> removePackets =
-					CacheBuilder.newBuilder().expireAfterAccess(3, TimeUnit.MINUTES).build();
-
 			public TeamData(int uid, ChatColor color) throws ReflectiveOperationException {
 				if (!color.isColor())
 					throw new IllegalArgumentException();
 				id = "glow-" + uid + color.getChar();
+				this.color = color;
 				Object team = createTeam.newInstance(scoreboardDummy, id);
 				setTeamPush.invoke(team, pushNever);
 				setTeamColor.invoke(team, getColorConstant.invoke(null, color.getChar()));
@@ -860,19 +2757,51 @@ public class GlowingEntities implements Listener {
 			}
 
 			public Object getEntityAddPacket(String teamID) throws ReflectiveOperationException {
-				Object packet = addPackets.getIfPresent(teamID);
-				if (packet == null) {
-					packet = createTeamPacket.newInstance(id, 3, Optional.empty(), Arrays.asList(teamID));
-					addPackets.put(teamID, packet);
-				}
-				return packet;
+				TeamEntry entry = teamEntries.get(teamID);
+				if (entry == null)
+					return createTeamPacket.newInstance(id, 3, Optional.empty(), Arrays.asList(teamID));
+				return entry.getPacket(entry.addPackets, this, 3);
+			}
+
+			public Object createEntitiesAddPacket(Collection<String> teamIDs) throws ReflectiveOperationException {
+				return createTeamPacket.newInstance(id, 3, Optional.empty(), teamIDs);
 			}
 
 			public Object getEntityRemovePacket(String teamID) throws ReflectiveOperationException {
-				Object packet = removePackets.getIfPresent(teamID);
+				TeamEntry entry = teamEntries.get(teamID);
+				if (entry == null)
+					return createTeamPacket.newInstance(id, 4, Optional.empty(), Arrays.asList(teamID));
+				return entry.getPacket(entry.removePackets, this, 4);
+			}
+
+			public Object createEntitiesRemovePacket(Collection<String> teamIDs) throws ReflectiveOperationException {
+				return createTeamPacket.newInstance(id, 4, Optional.empty(), teamIDs);
+			}
+
+		}
+
+		/**
+		 * Team packets of one entity, kept as long as the entity glows for at least one player.
+		 */
+		static class TeamEntry {
+
+			private final String teamID;
+			private final AtomicReferenceArray<Object> addPackets = new AtomicReferenceArray<>(16); // by color
+			private final AtomicReferenceArray<Object> removePackets = new AtomicReferenceArray<>(16);
+			private int references; // guarded by the entries map
+
+			private TeamEntry(String teamID) {
+				this.teamID = teamID;
+			}
+
+			private Object getPacket(AtomicReferenceArray<Object> packets, TeamData teamData, int mode)
+					throws ReflectiveOperationException {
+				int index = teamData.color.ordinal();
+				Object packet = packets.get(index);
 				if (packet == null) {
-					packet = createTeamPacket.newInstance(id, 4, Optional.empty(), Arrays.asList(teamID));
-					removePackets.put(teamID, packet);
+					packet = createTeamPacket.newInstance(teamData.id, mode, Optional.empty(), Arrays.asList(teamID));
+					if (!packets.compareAndSet(index, null, packet))
+						packet = packets.get(index);
 				}
 				return packet;
 			}
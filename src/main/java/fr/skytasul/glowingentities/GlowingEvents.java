@@ -0,0 +1,185 @@
+package fr.skytasul.glowingentities;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Java Flight Recorder events emitted by the util.
+ * <p>
+ * Each event is created and started before the recorded operation and committed only if
+ * {@link Event#shouldCommit()} returns <code>true</code>: when no recording is enabled for an event
+ * type, the JIT removes the allocation and the fields are never filled.
+ */
+final class GlowingEvents {
+
+	private static final String CATEGORY = "Glowing Entities";
+
+	private GlowingEvents() {}
+
+	private static String name(@Nullable Player viewer) {
+		return viewer == null ? null : viewer.getName();
+	}
+
+	@Name("fr.skytasul.glowingentities.GlowOperation")
+	@Label("Glow Operation")
+	@Description("A call to setGlowing, unsetGlowing or one of their bulk variants")
+	@Category(CATEGORY)
+	static class GlowOperation extends Event {
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Entity ID")
+		@Description("ID of the entity, or -1 for bulk operations")
+		int entityId;
+
+		@Label("Viewer")
+		String viewer;
+
+		@Label("Color")
+		String color;
+
+		@Label("Item Count")
+		@Description("Amount of entities given to the operation")
+		int itemCount;
+
+		void commit(String operation, int entityId, Player viewer, @Nullable ChatColor color) {
+			commit(operation, entityId, viewer, color, 1);
+		}
+
+		void commit(String operation, int entityId, Player viewer, @Nullable ChatColor color, int itemCount) {
+			end();
+			if (shouldCommit()) {
+				this.operation = operation;
+				this.entityId = entityId;
+				this.viewer = name(viewer);
+				this.color = color == null ? null : color.name();
+				this.itemCount = itemCount;
+				commit();
+			}
+		}
+
+	}
+
+	@Name("fr.skytasul.glowingentities.MetadataRewrite")
+	@Label("Metadata Rewrite")
+	@Description("A metadata packet rewritten to carry the glowing flag")
+	@Category(CATEGORY)
+	static class MetadataRewrite extends Event {
+
+		@Label("Entity ID")
+		int entityId;
+
+		@Label("Viewer")
+		String viewer;
+
+		@Label("Item Count")
+		int itemCount;
+
+		@Label("Patched In Buffer")
+		boolean patched;
+
+		void commit(int entityId, Player viewer, int itemCount, boolean patched) {
+			end();
+			if (shouldCommit()) {
+				this.entityId = entityId;
+				this.viewer = name(viewer);
+				this.itemCount = itemCount;
+				this.patched = patched;
+				commit();
+			}
+		}
+
+	}
+
+	@Name("fr.skytasul.glowingentities.BundleCorrection")
+	@Label("Bundle Correction")
+	@Description("A bundle packet scanned for metadata of glowing entities")
+	@Category(CATEGORY)
+	static class BundleCorrection extends Event {
+
+		@Label("Viewer")
+		String viewer;
+
+		@Label("Item Count")
+		@Description("Amount of packets of the bundle scanned")
+		int itemCount;
+
+		@Label("Corrected")
+		@Description("Whether a metadata packet will be sent after the bundle")
+		boolean corrected;
+
+		void commit(Player viewer, int itemCount, boolean corrected) {
+			end();
+			if (shouldCommit()) {
+				this.viewer = name(viewer);
+				this.itemCount = itemCount;
+				this.corrected = corrected;
+				commit();
+			}
+		}
+
+	}
+
+	@Name("fr.skytasul.glowingentities.BlockChunkSpawn")
+	@Label("Block Chunk Spawn")
+	@Description("Glowing blocks spawned because a chunk has been sent to a player")
+	@Category(CATEGORY)
+	static class BlockChunkSpawn extends Event {
+
+		@Label("Viewer")
+		String viewer;
+
+		@Label("Chunk X")
+		int chunkX;
+
+		@Label("Chunk Z")
+		int chunkZ;
+
+		@Label("Item Count")
+		@Description("Amount of blocks spawned")
+		int itemCount;
+
+		void commit(Player viewer, int chunkX, int chunkZ, int itemCount) {
+			end();
+			if (shouldCommit()) {
+				this.viewer = name(viewer);
+				this.chunkX = chunkX;
+				this.chunkZ = chunkZ;
+				this.itemCount = itemCount;
+				commit();
+			}
+		}
+
+	}
+
+	@Name("fr.skytasul.glowingentities.InitializePhase")
+	@Label("Initialize Phase")
+	@Description("A phase of the reflection initialization")
+	@Category(CATEGORY)
+	static class InitializePhase extends Event {
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Success")
+		boolean success;
+
+		void commit(String phase, boolean success) {
+			end();
+			if (shouldCommit()) {
+				this.phase = phase;
+				this.success = success;
+				commit();
+			}
+		}
+
+	}
+
+}